@@ -0,0 +1,134 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * writes and reads of the statistics of a complex with the given number of houses, each with a history already stored.
+ * the single operations run with as many threads as given by -t, readWrite mixes 1 writer with 3 readers on the same houses.
+ * a write goes to a random house with the next timestamp of that house: two threads hitting the same house at once
+ * may store them out of order, the refused one is still a measured operation
+ * <p>
+ * mvn -P benchmark package && java -jar target/benchmarks.jar ComplexBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComplexBenchmark {
+    @Param({"16", "256"})
+    int houses;
+
+    @Param({"1000", "20000"})
+    int history;            //measures stored per house before the run, and in the global series
+
+    @Param({"100"})
+    int n;                  //measures read by a query
+
+    private Complex complex;
+    private AtomicLongArray nextLocal;          //next timestamp of every house
+    private final AtomicLong nextGlobal=new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void fill(){
+        complex=new Complex();
+        nextLocal=new AtomicLongArray(houses);
+
+        List<Pair<Long,Double>> measures=new ArrayList<>(history);
+        for(int i=0;i<history;i++) measures.add(Pair.of((long) i, 20+Math.sin(i/50.0)*5));
+
+        for(int id=0;id<houses;id++){
+            complex.addHouse(new Home(id, "localhost", 5000+id));
+            complex.addLocalStats(id, measures);
+            nextLocal.set(id, history);
+        }
+        complex.addGlobalStats(measures);
+        nextGlobal.set(history);
+    }
+
+    @State(Scope.Thread)
+    public static class Buffers {       //what a reader copies the windows in
+        final long[] timestamps=new long[MeasureWindow.BLOCK];
+        final double[] measures=new double[MeasureWindow.BLOCK];
+    }
+
+    //region SINGLE OPERATIONS
+    @Benchmark
+    public boolean addLocalStat(){
+        return writeLocal();
+    }
+
+    @Benchmark
+    public boolean addGlobalStat(){
+        long ts=nextGlobal.getAndIncrement();
+        return complex.addGlobalStat(Pair.of(ts, (double) (ts%100)));
+    }
+
+    @Benchmark
+    public void getLastLocalStat(Buffers b, Blackhole bh){
+        MeasureWindow w=complex.getLastLocalStat(randomHouse(), n);
+        drain(w, b, bh);
+    }
+
+    @Benchmark
+    public Pair<Double,Double> getLocalMeanDev(){
+        return complex.getLocalMeanDev(randomHouse(), n);
+    }
+
+    @Benchmark
+    public Pair<Double,Double> getGlobalMeanDev(){
+        return complex.getGlobalMeanDev(n);
+    }
+    //endregion
+
+    //region READERS AND WRITERS
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public boolean writer(){
+        return writeLocal();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public void lastReader(Buffers b, Blackhole bh){
+        drain(complex.getLastLocalStat(randomHouse(), n), b, bh);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public Pair<Double,Double> meanDevReader(){
+        return complex.getLocalMeanDev(randomHouse(), n);
+    }
+    //endregion
+
+    private boolean writeLocal(){
+        int id=randomHouse();
+        long ts=nextLocal.getAndIncrement(id);
+        return complex.addLocalStat(id, Pair.of(ts, (double) (ts%100)));
+    }
+
+    private int randomHouse(){
+        return ThreadLocalRandom.current().nextInt(houses);
+    }
+
+    private static void drain(MeasureWindow w, Buffers b, Blackhole bh){
+        for(int k=w.read(b.timestamps, b.measures);k>0;k=w.read(b.timestamps, b.measures)){
+            bh.consume(b.timestamps[k-1]);
+            bh.consume(b.measures[k-1]);
+        }
+    }
+}
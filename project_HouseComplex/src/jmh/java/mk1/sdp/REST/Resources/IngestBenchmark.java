@@ -0,0 +1,73 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.REST.Ingest.IngestPipeline;
+import mk1.sdp.misc.Pair;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * statistics stored by the request threads (sync) against handed to the writers of the ingest pipeline (async).
+ * async only counts a statistic once it is in a ring, waiting while the ring is full, so over a run it measures
+ * the rate the writers keep up with; asyncReadYourWrite also waits for it to be stored, as a client using ?after= does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsdp.ingest.async=true")
+@Threads(4)
+public class IngestBenchmark {
+    @Param({"64"})
+    int houses;
+
+    private Complex complex;
+    private IngestPipeline pipeline;
+    private AtomicLongArray nextLocal;
+
+    @Setup(Level.Trial)
+    public void start(){
+        complex=new Complex();
+        nextLocal=new AtomicLongArray(houses);
+        for(int id=0;id<houses;id++) complex.addHouse(new Home(id, "localhost", 5000+id));
+
+        pipeline=IngestPipeline.start(complex);
+        if(pipeline==null) throw new IllegalStateException("run with -Dsdp.ingest.async=true");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop(){
+        pipeline.stop();
+    }
+
+    @Benchmark
+    public boolean sync(){
+        int id=randomHouse();
+        long ts=nextLocal.getAndIncrement(id);
+        return complex.addLocalStat(id, Pair.of(ts, (double) (ts%100)));
+    }
+
+    @Benchmark
+    public String async(){
+        int id=randomHouse();
+        long ts=nextLocal.getAndIncrement(id);
+        String token;
+        while((token=pipeline.submitLocal(id, ts, (double) (ts%100)))==null){
+            Thread.onSpinWait();        //ring full: a client would retry after the 503
+        }
+        return token;
+    }
+
+    @Benchmark
+    public boolean asyncReadYourWrite() throws InterruptedException {
+        return pipeline.awaitApplied(async(), 1000);
+    }
+
+    private int randomHouse(){
+        return ThreadLocalRandom.current().nextInt(houses);
+    }
+}
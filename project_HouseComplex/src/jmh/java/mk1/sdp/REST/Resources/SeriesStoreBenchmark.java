@@ -0,0 +1,71 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * raw against compressed (Gorilla) storage of a full series: append, scan and mean/deviation of the last n measures.
+ * single threaded, the stores are guarded by their series.
+ * the bytes per measure of the store are printed at the end of every trial, next to the times
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeriesStoreBenchmark {
+    @Param({"raw", "gorilla"})
+    String store;
+
+    @Param({"20000"})
+    int retention;
+
+    @Param({"100", "10000"})
+    int n;
+
+    private SeriesStore series;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void fill(){
+        series= store.equals("gorilla")? new GorillaSeriesStore(retention) : new RawSeriesStore(retention);
+        for(next=0;next<retention;next++) series.add(next*1000, measure(next));     //a reading every second
+    }
+
+    @TearDown(Level.Trial)
+    public void footprint(){        //an aux counter would be summed over the iterations
+        System.out.printf("%n%s store: %.2f bytes per point (%d bytes, %d measures)%n",
+                store, (double) series.encodedBytes()/series.size(), series.encodedBytes(), series.size());
+    }
+
+    @Benchmark
+    public void add(){
+        series.add(next*1000, measure(next));
+        next++;
+    }
+
+    @Benchmark
+    public void scanLastN(Blackhole bh){
+        long end=series.total();
+        SeriesStore.MeasureCursor c=series.cursor(end-n, end);
+        while(c.next()){
+            bh.consume(c.timestamp());
+            bh.consume(c.measure());
+        }
+    }
+
+    @Benchmark
+    public Pair<Double,Double> meanDeviationLastN(){
+        long end=series.total();
+        return series.meanDeviation(end-n, end);
+    }
+
+    private static double measure(long i){          //a smooth consumption with some noise, as a house sends it
+        return Math.round((1.5+Math.sin(i/300.0)+(i*7919%13)/100.0)*1000)/1000.0;
+    }
+}
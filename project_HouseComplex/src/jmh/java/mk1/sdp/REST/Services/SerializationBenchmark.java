@@ -0,0 +1,84 @@
+package mk1.sdp.REST.Services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mk1.sdp.GRPC.PeerMessages.Measure;
+import mk1.sdp.GRPC.PeerMessages.StatList;
+import mk1.sdp.REST.Resources.Complex;
+import mk1.sdp.REST.Resources.MeasureWindow;
+import mk1.sdp.misc.Pair;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the bodies of a statistics response: a List of Pair written by Jackson as Jersey would,
+ * the block-wise JSON writer of ComplexService reading straight from the series, and protobuf.
+ * readJackson and readProtobuf are what a client pays to get the list back.
+ * the encoded sizes of the list are printed once per trial, next to the times
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"100", "10000"})
+    int size;
+
+    private final ObjectMapper mapper=new ObjectMapper();
+    private List<Pair<Long,Double>> list;
+    private byte[] json;
+    private byte[] protobuf;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        list=new ArrayList<>(size);
+        for(int i=0;i<size;i++) list.add(Pair.of(10_000_000_000L+i*1000, 20+Math.sin(i/50.0)*5));
+
+        Complex.getInstance().addGlobalStats(list);     //a fork per parameter: the series holds exactly this list
+        json=mapper.writeValueAsBytes(list);
+        protobuf=writeProtobuf();
+
+        System.out.println("\nencoded "+size+" measures: json "+json.length+" bytes ("+json.length/size+" per measure), "
+                +"streaming json "+writeStreaming().length+" bytes, protobuf "+protobuf.length+" bytes ("+protobuf.length/size+" per measure)");
+    }
+
+    @Benchmark
+    public byte[] writeJackson() throws IOException {
+        return mapper.writeValueAsBytes(list);
+    }
+
+    @Benchmark
+    public byte[] writeStreaming() throws IOException {
+        MeasureWindow w=Complex.getInstance().getLastGlobalStat(size);
+        ByteArrayOutputStream out=new ByteArrayOutputStream(size*ComplexService.JSON_BYTES_PER_MEASURE);
+        ComplexService.writeJson(w, new long[MeasureWindow.BLOCK], new double[MeasureWindow.BLOCK], out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeProtobuf(){
+        StatList.Builder b=StatList.newBuilder();
+        for(Pair<Long,Double> p:list){
+            b.addMeasures(Measure.newBuilder().setTimeStamp(p.left).setMeasurement(p.right));
+        }
+        return b.build().toByteArray();
+    }
+
+    @Benchmark
+    public List<Pair<Long,Double>> readJackson() throws IOException {
+        return mapper.readValue(json, new TypeReference<List<Pair<Long,Double>>>(){});
+    }
+
+    @Benchmark
+    public StatList readProtobuf() throws IOException {
+        return StatList.parseFrom(protobuf);
+    }
+}
@@ -0,0 +1,146 @@
+package mk1.sdp.PeerToPeer;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import mk1.sdp.GRPC.PeerMessages.Ack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static mk1.sdp.misc.Common.*;
+
+/**
+ * one message sent to a list of peers, one future per call.
+ * the calls are only started here, the answers complete the futures on the gRPC threads and every callback runs there:
+ * nothing waits for them and no pool of the JVM is involved. the results are read as
+ * all the answers, the first n answers or the first answer accepted by a condition
+ */
+class Broadcast {
+    static final long DEADLINE_MS = Long.getLong("sdp.peer.deadlineMs", 10000);     //of the calls that must not hang, 0 for none
+
+    private final String what;
+    private final List<CompletableFuture<Ack>> calls;
+
+    /**
+     * @param what = name of the message, for the errors
+     * @param call = starts the call to a peer
+     */
+    Broadcast(String what, List<ManagedChannel> peers, Function<ManagedChannel, CompletableFuture<Ack>> call){
+        this.what=what;
+        calls=new ArrayList<>(peers.size());
+        for(ManagedChannel chan:peers){
+            CompletableFuture<Ack> f;
+            try{
+                f=call.apply(chan);
+            }catch (RuntimeException e){        //e.g. a channel shut down in the meantime
+                f=new CompletableFuture<>();
+                f.completeExceptionally(e);
+            }
+            calls.add(f);
+        }
+        onError(t -> {
+            if(!Status.fromThrowable(t).isOk()) printErr("during "+what+" "+t.getMessage());
+        });
+    }
+
+    /**
+     * @return the future of a call of a future stub
+     */
+    static CompletableFuture<Ack> of(ListenableFuture<Ack> call){
+        CompletableFuture<Ack> f=new CompletableFuture<>();
+        Futures.addCallback(call, new FutureCallback<Ack>() {
+            @Override
+            public void onSuccess(Ack ack) {
+                f.complete(ack);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                f.completeExceptionally(throwable);
+            }
+        }, MoreExecutors.directExecutor());
+        return f;
+    }
+
+    int size(){
+        return calls.size();
+    }
+
+    /**
+     * runs for every answer, as soon as it arrives
+     */
+    Broadcast onAck(Consumer<Ack> action){
+        calls.forEach(f -> f.thenAccept(action));
+        return this;
+    }
+
+    /**
+     * runs for every failed call, with its StatusRuntimeException
+     */
+    Broadcast onError(Consumer<StatusRuntimeException> action){
+        calls.forEach(f -> f.whenComplete((ack, t) -> {
+            if(t!=null) action.accept(status(t));
+        }));
+        return this;
+    }
+
+    /**
+     * @return the answers, once every call has ended. the failed calls are left out
+     */
+    CompletableFuture<List<Ack>> all(){
+        return quorum(calls.size());
+    }
+
+    /**
+     * @return the answers received when n calls have ended, a failed call counts as ended:
+     * a peer that is gone must not hold back the others. never completes if there are less than n calls
+     */
+    CompletableFuture<List<Ack>> quorum(int n){
+        CompletableFuture<List<Ack>> result=new CompletableFuture<>();
+        if(n<=0){
+            result.complete(new ArrayList<>());
+            return result;
+        }
+
+        Queue<Ack> acks=new ConcurrentLinkedQueue<>();
+        AtomicInteger ended=new AtomicInteger();
+        calls.forEach(f -> f.whenComplete((ack, t) -> {
+            if(ack!=null) acks.add(ack);
+            if(ended.incrementAndGet()==n) result.complete(new ArrayList<>(acks));
+        }));
+        return result;
+    }
+
+    /**
+     * @return the first answer accepted by the condition, null if every call has ended without one
+     */
+    CompletableFuture<Ack> first(Predicate<Ack> condition){
+        CompletableFuture<Ack> result=new CompletableFuture<>();
+        AtomicInteger ended=new AtomicInteger();
+        if(calls.isEmpty()) result.complete(null);
+
+        calls.forEach(f -> f.whenComplete((ack, t) -> {
+            if(ack!=null && condition.test(ack)) result.complete(ack);
+            if(ended.incrementAndGet()==calls.size()) result.complete(null);     //no-op if already accepted
+        }));
+        return result;
+    }
+
+    private static StatusRuntimeException status(Throwable t){
+        if(t instanceof CompletionException && t.getCause()!=null) t=t.getCause();
+        return t instanceof StatusRuntimeException? (StatusRuntimeException) t : Status.fromThrowable(t).asRuntimeException();
+    }
+}
@@ -1,13 +1,11 @@
 package mk1.sdp.PeerToPeer;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
 
 import mk1.sdp.GRPC.HouseManagementGrpc.HouseManagementImplBase;
 import mk1.sdp.GRPC.PeerMessages.*;
 import mk1.sdp.PeerToPeer.Mutex.LamportClock;
 import mk1.sdp.misc.Pair;
-import mk1.sdp.PeerToPeer.Mutex.SyncObj;
 
 import static mk1.sdp.misc.Common.*;
 
@@ -42,7 +40,7 @@ public class HouseManagementService extends HouseManagementImplBase{
         //testTimeWaster(60);
         synchronized (parent.peerTable){
             if(!parent.peerTable.containsKey(sender)){
-                ManagedChannel channel= ManagedChannelBuilder.forAddress(request.getAddress(),request.getPort()).usePlaintext(true).build();
+                ManagedChannel channel= PeerExecutors.channel(request.getAddress(),request.getPort());
                 parent.peerTable.put(sender,channel);
                 s="added "+sender+" to peerTable.\t Hello!";
                 print("[HOUSE "+ homeID +"] added "+sender+" to peerTable.");
@@ -78,7 +76,7 @@ public class HouseManagementService extends HouseManagementImplBase{
 
             synchronized (parent.peerTable){
                 if(parent.peerTable.containsKey(sender)) {
-                    parent.peerTable.remove(sender);
+                    mexDispatcher.dropLink(parent.peerTable.remove(sender));
                     s = "removed from peerTable ";
                     printHigh("HOUSE "+ homeID," removal of "+sender+" COMPLETED!");
 
@@ -106,6 +104,22 @@ public class HouseManagementService extends HouseManagementImplBase{
     //region MEAN HANDLER
     @Override
     public void sendMeasure(Measure request, StreamObserver<Ack> responseObserver) {
+        storeMeasure(request);
+
+        responseObserver.onNext(simpleAck(""));
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void sendGlobalMean(Measure request, StreamObserver<Ack> responseObserver) {
+        printGlobalMean(request);
+
+        responseObserver.onNext(simpleAck(""));
+        responseObserver.onCompleted();
+
+    }
+
+    private void storeMeasure(Measure request){
         int sender=request.getSenderID();
         Pair<Long, Double> mean = Pair.of(request.getTimeStamp(), request.getMeasurement());
 
@@ -116,20 +130,24 @@ public class HouseManagementService extends HouseManagementImplBase{
             }
             complexMeans.get(sender).offerLast(mean);
         }
+    }
 
-        responseObserver.onNext(simpleAck(""));
-        responseObserver.onCompleted();
+    private boolean storeBatch(MeasureBatch batch){   //every mean is an event of the clock, as its own call would be. true if it ticked
+        for(Measure m:batch.getLocalList()){
+            storeMeasure(m);
+            lampClock.afterEvent();
+        }
+        for(Measure m:batch.getGlobalList()){
+            printGlobalMean(m);
+            lampClock.afterEvent();
+        }
+        return batch.getLocalCount()+batch.getGlobalCount()>0;
     }
 
-    @Override
-    public void sendGlobalMean(Measure request, StreamObserver<Ack> responseObserver) {
+    private void printGlobalMean(Measure request){
         Pair<Long, Double> globalMean = Pair.of(request.getTimeStamp(), request.getMeasurement());
 
         printMeasure("\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\tGLOBAL MEAN:", globalMean);
-
-        responseObserver.onNext(simpleAck(""));
-        responseObserver.onCompleted();
-
     }
     //endregion
 
@@ -154,28 +172,56 @@ public class HouseManagementService extends HouseManagementImplBase{
     @Override
     public void boostRequest(RequestBoost request, StreamObserver<Ack> responseObserver) {
         int sender=request.getRequester();
-        Pair<Integer, Integer> otherClock = Pair.of(sender, request.getLamportTimestamp());
-        boolean printOnce=true;
         if(homeID!=sender)
             printHigh("house "+homeID, sender+" requested to boost");
 
-        while(mexDispatcher.isInBoost() || (mexDispatcher.isAskingBoost() && lampClock.before(otherClock))){
-           if(printOnce) {
-               printRED("add " + sender + " to boost queue");
-               printOnce=false;
-           }
-           SyncObj.getInstance().waiter(6);
-
-            /*could trigger print of
-            *   io.grpc.netty.NettyServerTransport notifyTerminated INFO: Transport failed
-            * when "this" has to notify a peer who got out of the network
-            * */
-
+        if(mexDispatcher.deferBoost(request, responseObserver)){
+            printRED("add " + sender + " to boost queue");
+            return;         //the dispatcher answers when the boost of this house ends
         }
 
         responseObserver.onNext(simpleAck("PERMISSION TO BOOST GRANTED"));
         responseObserver.onCompleted();
     }
+
+    /**
+     * the messages of a peer on its long-lived stream, handled as the unary calls do.
+     * each one is acked by a StreamAck up to its seq, which also acks whatever came before it
+     */
+    @Override
+    public StreamObserver<PeerEnvelope> peerStream(StreamObserver<StreamAck> responseObserver) {
+        return new StreamObserver<PeerEnvelope>() {
+            @Override
+            public void onNext(PeerEnvelope env) {
+                boolean ticked=false;       //a batch ticks once per mean, its ack reuses the last tick: n means are n events as n calls
+                switch (env.getBodyCase()){
+                    case MEASURE: storeMeasure(env.getMeasure());
+                        break;
+                    case GLOBALMEAN: printGlobalMean(env.getGlobalMean());
+                        break;
+                    case ELECTION:
+                        break;
+                    case NEWCOORDINATOR: parent.setCoordinator(env.getNewCoordinator().getCoordinatorID());
+                        break;
+                    case BATCH: ticked=storeBatch(env.getBatch());
+                        break;
+                    default: printErr("empty message on a peer stream");
+                }
+
+                responseObserver.onNext(streamAck(env.getSeq(), !ticked));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                //the peer went away or cancelled, nothing left to ack
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        };
+    }
     //endregion
 
     private Ack simpleAck(String text){
@@ -191,6 +237,18 @@ public class HouseManagementService extends HouseManagementImplBase{
         }
     }
 
+    private StreamAck streamAck(long upTo, boolean tick){
+        if(tick) lampClock.afterEvent();
+        synchronized (parent) {
+            return StreamAck.newBuilder()
+                    .setUpTo(upTo)
+                    .setCoordinator(parent.getCoordinator())
+                    .setLamportTimestamp(lampClock.peekClock())
+                    .setSender(homeID)
+                    .build();
+        }
+    }
+
     private void startScheduler(){
         if(timer!=null)return;
         timer= new Timer("daemonMeanCalculator");
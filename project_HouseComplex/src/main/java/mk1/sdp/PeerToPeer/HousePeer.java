@@ -3,13 +3,13 @@ package mk1.sdp.PeerToPeer;
 import simulation_src_2019.SmartMeterSimulator;
 
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 
 import mk1.sdp.PeerToPeer.Mutex.LamportClock;
 import mk1.sdp.REST.RESTServer;
 import mk1.sdp.REST.Resources.Home;
 import mk1.sdp.misc.Common;
 import mk1.sdp.misc.Pair;
+import mk1.sdp.misc.ProtobufProvider;
 
 import static mk1.sdp.misc.Common.*;
 
@@ -64,7 +64,7 @@ public class HousePeer {
         peerTable = new Hashtable<>();
         lamportClock = new LamportClock(HomeID);
 
-        ClientConfig c=new ClientConfig();
+        ClientConfig c=new ClientConfig(ProtobufProvider.class);
         client= ClientBuilder.newClient(c);
         serverREST =client.target(getBaseURI());
         pushEvent=serverREST.path("eventBroadcast");
@@ -165,7 +165,7 @@ public class HousePeer {
 
     private void addPeers(Home[] h) {
         for(Home x :h){
-            ManagedChannel channel = ManagedChannelBuilder.forAddress(x.address, x.listeningPort).usePlaintext(true).build();
+            ManagedChannel channel = PeerExecutors.channel(x.address, x.listeningPort);
 
             peerTable.put(x.HomeID,channel);
         }
@@ -189,6 +189,8 @@ public class HousePeer {
     //region APPLICATION END
 
     private boolean deleteHouse(){
+        mexDispatcher.flushStatistics(false);      //the statistics of a removed house would be refused
+
         WebTarget wt = serverREST.path("/complex/delete").queryParam("id", HomeID);
         Response resp=tryConnection(wt,false );
 
@@ -208,6 +210,8 @@ public class HousePeer {
         return true;
     }
     private void dropConnections() {
+        mexDispatcher.flushStatistics(true);
+
         if(peerTable.isEmpty()) {
             listener.stop();
             client.close();
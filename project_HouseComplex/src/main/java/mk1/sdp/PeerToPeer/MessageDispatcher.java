@@ -6,20 +6,22 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import mk1.sdp.GRPC.HouseManagementGrpc;
+import mk1.sdp.GRPC.HouseManagementGrpc.HouseManagementFutureStub;
 import mk1.sdp.GRPC.PeerMessages.*;
 
 import mk1.sdp.PeerToPeer.Mutex.LamportClock;
 import mk1.sdp.misc.Pair;
-import mk1.sdp.PeerToPeer.Mutex.SyncObj;
 
-import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static mk1.sdp.misc.Common.*;
 
@@ -28,14 +30,15 @@ class MessageDispatcher {
     private final HousePeer parent;
     private final String address;
     private final int port;
-    private final WebTarget toLocalStat;
-    private final WebTarget toGlobalStat;
+    private final StatUploader uploader;
     private final WebTarget pushEvent;
+    private final Map<ManagedChannel, PeerLink> links=new ConcurrentHashMap<>();     //stream of every peer messaged so far
 
     //mutex
     private final LamportClock lampClock;
     private boolean usingBoost;
     private boolean askingBoost;
+    private final List<StreamObserver<Ack>> deferred=new ArrayList<>();      //boost requests answered when the boost ends
 
     MessageDispatcher(HousePeer parent, WebTarget server){
         this.parent=parent;
@@ -46,8 +49,7 @@ class MessageDispatcher {
             this.lampClock=parent.lamportClock;
         }
 
-        toLocalStat = server.path("/complex/house/add").queryParam("id", id);
-        toGlobalStat = server.path("/complex/global/add");
+        uploader = new StatUploader(id, server);
         pushEvent=server.path("/eventBroadcast");
         setUsingBoost(false);
     }
@@ -56,52 +58,24 @@ class MessageDispatcher {
     void addSelfToPeers(List<ManagedChannel> copy){
         SelfIntroduction selfIntro = SelfIntroduction.newBuilder().setId(id).setAddress(address).setPort(port).build();
 
-        final  Pair<Integer, Integer> p = Pair.of(0,-1);    //left= number of answers, right= coordinator received
+        final AtomicInteger answers=new AtomicInteger();
 
-        StreamObserver<Ack> respObs=new StreamObserver<Ack>() {
-
-            @Override
-            public void onNext(Ack ack) {
-
-                print(ack.getMessage());
-                int coord=ack.getCoordinator();
-                synchronized (p){
-                    if(coord!=-1 && p.right!=coord){
-                        p.right=coord;
-                    }
-                }
-
-                lampClock.checkLamport(ack);
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                if(t.getStatus().isOk()) return;
-                printErr("Async self introduction "+ t.getMessage());
-
-                if(t.getStatus().getCode()== Status.Code.DEADLINE_EXCEEDED){
-                    printErr("deadline problem detected during self introduction");
-                }
-            }
-
-            @Override
-            public void onCompleted() {
-                synchronized (p){
-                    p.left+=1;
-                    print("[HOUSE "+id+"] successful introduction: "+p.left+"/"+copy.size());
-
-                    if(p.right!=-1){
-                        synchronized (parent){
-                            if(parent.getCoordinator() !=p.right)
-                                parent.setCoordinator(p.right);
-                        }
+        Broadcast intro=new Broadcast("self introduction", copy, chan -> Broadcast.of(withDeadline(HouseManagementGrpc.newFutureStub(chan)).addHome(selfIntro)))
+                .onAck(ack -> {
+                    print(ack.getMessage());
+                    lampClock.checkLamport(ack);
+                    print("[HOUSE "+id+"] successful introduction: "+answers.incrementAndGet()+"/"+copy.size());
+                })
+                .onError(t -> {
+                    if(t.getStatus().getCode()== Status.Code.DEADLINE_EXCEEDED){
+                        printErr("deadline problem detected during self introduction");
                     }
-                }
-            }
-        };
+                });
 
-        copy.stream().parallel().forEach(chan -> HouseManagementGrpc.newStub(chan).addHome(selfIntro, respObs));
+        intro.first(ack -> ack.getCoordinator()!=-1).thenAccept(ack -> {      //the first peer that knows the coordinator
+            if(ack!=null)
+                parent.setCoordinator(ack.getCoordinator());
+        });
 
         lampClock.afterEvent();
     }
@@ -109,167 +83,72 @@ class MessageDispatcher {
     void removeSelfFromPeers(List<ManagedChannel> copy){
         SelfIntroduction selfIntro = SelfIntroduction.newBuilder().setId(id).build();
 
-        final int[] count = {0};
-        StreamObserver<Ack> respObs=new StreamObserver<Ack>() {
-            @Override
-            public void onNext(Ack ack) {
-                if(ack.getAck())
-                    print(ack.getMessage());
-                lampClock.checkLamport(ack);
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                if(t.getStatus().isOk()) return;
-                printErr("Async self deletion "+ t.getMessage());
-
-                if(t.getMessage().toUpperCase().matches("(.*)DEADLINE_EXCEEDED(.*)")){
-                    printErr("deadline problem detected while removing self");
-                }
-
-            }
-
-            @Override
-            public void onCompleted() {
-                synchronized (MessageDispatcher.this) {
-                    count[0] += 1;
-                    print("[HOUSE "+id+"] successful removal: "+count[0]+"/"+copy.size());
-                }
-
-            }
-        };
-
+        final AtomicInteger answers=new AtomicInteger();
 
         setAskingBoost(false);
         setUsingBoost(false);
-        SyncObj.getInstance().notifier();     //to notify whomever is waiting for "this" in the boost queue
+        grantDeferred();     //whomever is waiting for "this" in the boost queue
+
+        new Broadcast("self deletion", copy, chan -> Broadcast.of(withDeadline(HouseManagementGrpc.newFutureStub(chan)).removeHome(selfIntro)))
+                .onAck(ack -> {
+                    if(ack.getAck())
+                        print(ack.getMessage());
+                    lampClock.checkLamport(ack);
+                    print("[HOUSE "+id+"] successful removal: "+answers.incrementAndGet()+"/"+copy.size());
+                })
+                .onError(t -> {
+                    if(t.getStatus().getCode()== Status.Code.DEADLINE_EXCEEDED){
+                        printErr("deadline problem detected while removing self");
+                    }
+                });
 
-        copy.stream().parallel().forEach(chan->HouseManagementGrpc.newStub(chan).removeHome(selfIntro, respObs));
-//        copy.stream().parallel().forEach(chan->HouseManagementGrpc.newStub(chan).withDeadlineAfter(5, TimeUnit.SECONDS).removeHome(selfIntro, respObs));
+        links.values().forEach(PeerLink::close);     //an open stream would keep the channels from shutting down
+        links.clear();
     }
 
     void sendGlobalStatistics(Pair<Long, Double> measure){
         if (!parent.isCoordinator())return;
 
-        sendToServer(toGlobalStat, measure);
+        uploader.addGlobal(measure);
 
         List<ManagedChannel> copy=parent.getFullPeerListCopy();
 
-        Measure globalMean= Measure.newBuilder().setMeasurement(measure.right).setTimeStamp(measure.left).build();
-
-        StreamObserver<Ack> respObs=new StreamObserver<Ack>() {
-            @Override
-            public void onNext(Ack ack) {
-               lampClock.checkLamport(ack);
-
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                if(t.getStatus().isOk()) return;
-                printErr(" during global mean broadcast ");
-
-            }
+        PeerEnvelope.Builder globalMean= PeerEnvelope.newBuilder().setGlobalMean(Measure.newBuilder().setMeasurement(measure.right).setTimeStamp(measure.left));
 
-            @Override
-            public void onCompleted() {
+        new Broadcast("global mean broadcast", copy, chan -> link(chan).call(globalMean, 0))
+                .onAck(lampClock::checkLamport);
 
-            }
-        };
-
-        copy.stream().parallel().forEach(chan->HouseManagementGrpc.newStub(chan).sendGlobalMean(globalMean,respObs));
         lampClock.afterEvent();
     }
 
     void sendToPeer(List<ManagedChannel> copy, Pair<Long, Double> measure) {
 
-        sendToServer(toLocalStat, measure);
-
-        Measure newMean= Measure.newBuilder().setSenderID(id).setTimeStamp(measure.left).setMeasurement(measure.right).build();
-
-        final Pair<Integer, Boolean> respVal = Pair.of(0, false);   //left= number of answers, right= check for coordinator answer
-
-        StreamObserver<Ack> respObs=new StreamObserver<Ack>() {
-            @Override
-            public void onNext(Ack ack) {
-                lampClock.checkLamport(ack);
-
-                synchronized (respVal){
-                    int x=ack.getCoordinator();
-                    if (parent.isCoordinator(x) && !respVal.right){
-                        respVal.right=true;                          //the coordinator has answered
-                    }
-                }
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                synchronized (respVal){
-                    respVal.left+=1;
-                }
-                if(t.getStatus().isOk()) return;
-                printErr("during local mean broadcast ");
-
-                if(t.getStatus().equals(Status.DEADLINE_EXCEEDED)){
-                    printErr("deadline problem detected");
-                }
-            }
+        uploader.addLocal(measure);
 
-            @Override
-            public void onCompleted() {
-                synchronized (respVal){
-                    respVal.left+=1;
+        PeerEnvelope.Builder newMean= PeerEnvelope.newBuilder().setMeasure(Measure.newBuilder().setSenderID(id).setTimeStamp(measure.left).setMeasurement(measure.right));
 
-                    if(respVal.left==copy.size())
-                        if(!respVal.right){
+        Broadcast mean=new Broadcast("local mean broadcast", copy, chan -> link(chan).call(newMean, 0))
+                .onAck(lampClock::checkLamport);
 
-                            printErr("election needed");
-                            startElection();
-
-                        }
-
-                }
+        mean.first(ack -> parent.isCoordinator(ack.getCoordinator())).thenAccept(ack -> {
+            if(ack==null && mean.size()>0){         //every peer has answered, but not the coordinator
+                printErr("election needed");
+                startElection();
             }
-        };
-        copy.stream().parallel().forEach(chan-> HouseManagementGrpc.newStub(chan).sendMeasure(newMean, respObs));
+        });
 
         lampClock.afterEvent();
     }
 
     /**
-     * REST request to server
-     * @param wt = target of the request (MUST HAVE THE CORRECT PATH)
-     * @param measure = measure to be sent to the server
-     * @return true if it was NOT able to send a request to the server
+     * sends to the server the statistics not uploaded yet
+     * @param last = true if no more statistics will be sent
      */
-    private boolean sendToServer(WebTarget wt, Pair<Long, Double> measure, int ...retries) {
-        Response resp=null;
-        try {
-             resp = wt.request(MediaType.APPLICATION_JSON).header("content-type", MediaType.APPLICATION_JSON).put(Entity.entity(measure, MediaType.APPLICATION_JSON_TYPE));
-        }catch (ProcessingException e){
-            if(retries.length==0){
-                printErr("server unreachable.\tretrying...");
-                timeWaster(5);
-                return sendToServer(wt,measure,1);
-            }
-            if (retries[0]<=5) {
-                printErr("attempt "+retries[0]+". server unreachable.\tretrying...");
-                timeWaster(5);
-                return sendToServer(wt,measure,retries[0]+1);
-            }
-            else {
-                printErr("unable to connect to server.");
-                return true;
-            }
-
-        }catch(IllegalStateException e){
-            printErr("connection to server closed");
-        }
-        if(resp==null) return true;
-        return responseHasError(resp);
+    void flushStatistics(boolean last){
+        if(last)
+            uploader.stop();
+        else
+            uploader.flush();
     }
 
     //region ELECTION HANDLING
@@ -279,70 +158,40 @@ class MessageDispatcher {
             becomeCoordinator();//I am new coordinator
             return;
         }
-        Coordinator coord= Coordinator.newBuilder().setCoordinatorID(id).build();
-
-        StreamObserver<Ack> respObs=new StreamObserver<Ack>() {
-            @Override
-            public void onNext(Ack ack) {
-                printHigh("house "+id, "asked to be coordinator to "+ack.getMessage());
-                lampClock.checkLamport(ack);
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                if(t.getStatus().isOk()) return;
-                printErr("during start election ");
-
-                if(t.getStatus().equals(Status.DEADLINE_EXCEEDED)){ //only happens when a message is sent to the previous coordinator, if it hasn't reappeared yet
-                    printErr("deadline problem detected: previous coordinator unreachable");
-                    synchronized (parent){
-                        if(parent.getCoordinator()==-1) //if the coordinator hasn't been chosen yet
-                            startElection();
+        PeerEnvelope.Builder coord= PeerEnvelope.newBuilder().setElection(Coordinator.newBuilder().setCoordinatorID(id));
+
+        new Broadcast("start election", copy, chan -> link(chan).call(coord, 5000))
+                .onAck(ack -> {
+                    printHigh("house "+id, "asked to be coordinator to "+ack.getMessage());
+                    lampClock.checkLamport(ack);
+                    printHigh("house "+id, "answer received.\n\tanother coordinator is being selected");
+                })
+                .onError(t -> {
+                    if(t.getStatus().getCode()== Status.Code.DEADLINE_EXCEEDED){ //only happens when a message is sent to the previous coordinator, if it hasn't reappeared yet
+                        printErr("deadline problem detected: previous coordinator unreachable");
+                        synchronized (parent){
+                            if(parent.getCoordinator()==-1) //if the coordinator hasn't been chosen yet
+                                startElection();
+                        }
                     }
-                }
-            }
+                });
 
-            @Override
-            public void onCompleted() {
-                printHigh("house "+id, "answer received.\n\tanother coordinator is being selected");
-
-            }
-        };
-        copy.stream().parallel().forEach(chan->HouseManagementGrpc.newStub(chan).withDeadlineAfter(5, TimeUnit.SECONDS).election(coord, respObs));
         lampClock.afterEvent();
     }
 
     private void becomeCoordinator() {
-        Coordinator coord= Coordinator.newBuilder().setCoordinatorID(id).build();
+        PeerEnvelope.Builder coord= PeerEnvelope.newBuilder().setNewCoordinator(Coordinator.newBuilder().setCoordinatorID(id));
         List<ManagedChannel> copy=parent.getFullPeerListCopy();
 
-        final Pair<Integer, Integer> respVal = Pair.of(0, 0);
-
-        StreamObserver<Ack> respObs=new StreamObserver<Ack>() {
-            @Override
-            public void onNext(Ack ack) {
-                print(ack.getMessage());
-                lampClock.checkLamport(ack);
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                if(t.getStatus().isOk()) return;
-                printErr("during coordinator broadcast");
-            }
+        final AtomicInteger notified=new AtomicInteger();
 
-            @Override
-            public void onCompleted() {
-                    synchronized (respVal){
-                        respVal.left+=1;
-                        print("[HOUSE "+id+"] houses notified: "+respVal.left+"/"+copy.size());
-                    }
-            }
-        };
+        new Broadcast("coordinator broadcast", copy, chan -> link(chan).call(coord, Broadcast.DEADLINE_MS))
+                .onAck(ack -> {
+                    print(ack.getMessage());
+                    lampClock.checkLamport(ack);
+                    print("[HOUSE "+id+"] houses notified: "+notified.incrementAndGet()+"/"+copy.size());
+                });
 
-        copy.stream().parallel().forEach(chan->HouseManagementGrpc.newStub(chan).newCoordinator(coord, respObs));
         lampClock.afterEvent();
     }
     //endregion
@@ -364,44 +213,27 @@ class MessageDispatcher {
 
         RequestBoost request=RequestBoost.newBuilder().setRequester(id).setLamportTimestamp(lampClock.peekClock()).build();
 
-        final Pair<Integer, Object> responses = Pair.of(0, null); //left=number of answers
-
-        StreamObserver<Ack> respObs= new StreamObserver<Ack>() {
-            @Override
-            public void onNext(Ack ack) {
-                lampClock.checkLamport(ack);
-
-                print(ack.getMessage());
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                synchronized (responses){
-                    responses.left = responses.left + 1;        //to avoid starvation in case of an error
-                }
-                StatusRuntimeException t=(StatusRuntimeException)throwable;
-                if(t.getStatus().isOk()) return;
-                printErr("error in ricart-Agrawala "+t.getMessage());
-
-            }
-
-            @Override
-            public void onCompleted() {
-                synchronized (responses) {
-                    responses.left = responses.left + 1;
-                    printHigh("house " + id, "answers received " + responses.left + "/" + copy.size());
-                    if(responses.left>=copy.size()-1 && !isInBoost()){
-                        setAskingBoost(false);
-                        boost();
-                    }
-                }
-            }
-        };
+        final AtomicInteger answers=new AtomicInteger();
 
         printHigh("house "+id,"asking the network the permission to boost");
         setAskingBoost(true);
 
-        copy.stream().parallel().forEach(chan->HouseManagementGrpc.newStub(chan).boostRequest(request, respObs));
+        //no deadline: a peer grants the permission only when it is done with its own boost
+        Broadcast permissions=new Broadcast("ricart-Agrawala", copy, chan -> Broadcast.of(HouseManagementGrpc.newFutureStub(chan).boostRequest(request)))
+                .onAck(ack -> {
+                    lampClock.checkLamport(ack);
+                    print(ack.getMessage());
+                    printHigh("house " + id, "answers received " + answers.incrementAndGet() + "/" + copy.size());
+                });
+
+        permissions.quorum(copy.size()-1).thenRun(() -> {      //a failed call counts as an answer, to avoid starvation
+            synchronized (this){
+                if(!isInBoost()){
+                    setAskingBoost(false);
+                    boost();
+                }
+            }
+        });
 
         lampClock.afterEvent();
     }
@@ -421,15 +253,76 @@ class MessageDispatcher {
             }finally {
                 setUsingBoost(false);
                 printHigh("house "+id,"boost completed!");
-                SyncObj.getInstance().notifier();
+                grantDeferred();
             }
         };
 
         new Thread(runner).start();
     }
+
+    /**
+     * ricart-agrawala: the request of a peer is answered only after the boost of this house,
+     * if this house is boosting or asked to boost before the peer did
+     * @return true if the answer has been deferred, false if the permission can be granted now
+     */
+    synchronized boolean deferBoost(RequestBoost request, StreamObserver<Ack> responseObserver){
+        Pair<Integer, Integer> otherClock = Pair.of(request.getRequester(), request.getLamportTimestamp());
+        if(!usingBoost && !(askingBoost && lampClock.before(otherClock))) return false;
+
+        deferred.add(responseObserver);
+        return true;
+    }
+
+    private void grantDeferred(){
+        List<StreamObserver<Ack>> granted;
+        synchronized (this){
+            granted=new ArrayList<>(deferred);
+            deferred.clear();
+        }
+
+        for(StreamObserver<Ack> responseObserver:granted){
+            try{
+                responseObserver.onNext(permission());
+                responseObserver.onCompleted();
+            }catch (StatusRuntimeException e){      //the peer has left the complex in the meantime
+                printErr("boost permission not delivered: "+e.getStatus().getCode());
+            }
+        }
+    }
+
+    private Ack permission(){
+        lampClock.afterEvent();
+        synchronized (parent) {
+            return Ack.newBuilder()
+                    .setAck(true)
+                    .setCoordinator(parent.getCoordinator())
+                    .setMessage("[REMOTE "+id+"] PERMISSION TO BOOST GRANTED")
+                    .setLamportTimestamp(lampClock.peekClock())
+                    .setSender(id)
+                    .build();
+        }
+    }
     //endregion
     //endregion
 
+    //region PEER LINKS
+    private static HouseManagementFutureStub withDeadline(HouseManagementFutureStub stub){
+        return Broadcast.DEADLINE_MS>0? stub.withDeadlineAfter(Broadcast.DEADLINE_MS, TimeUnit.MILLISECONDS) : stub;
+    }
+
+    private PeerLink link(ManagedChannel chan){
+        return links.computeIfAbsent(chan, PeerLink::new);
+    }
+
+    /**
+     * closes the stream to a peer that left the complex
+     */
+    void dropLink(ManagedChannel chan){
+        PeerLink l=links.remove(chan);
+        if(l!=null) l.close();
+    }
+    //endregion
+
     //region GETTER/SETTER
     private synchronized void setUsingBoost(boolean usingBoost) {
         this.usingBoost = usingBoost;
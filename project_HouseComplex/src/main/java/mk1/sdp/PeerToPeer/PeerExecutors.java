@@ -0,0 +1,57 @@
+package mk1.sdp.PeerToPeer;
+
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * the threads of the peer network, shared by the server and every channel of the house instead of a set per channel:
+ * - one group of sdp.peer.eventLoops (default: the processors) Netty event loops doing the I/O of all of them
+ * - sdp.peer.clientThreads (default 4) threads running the answers of the calls to the peers
+ * - sdp.peer.serverThreads (default 4) threads running the handlers of the server: they lock the house and its tables,
+ *   print and close links, which must not stall the I/O of every channel on the event loops
+ * all daemon, they do not keep the JVM alive
+ */
+final class PeerExecutors {
+    static final int EVENT_LOOPS = Integer.getInteger("sdp.peer.eventLoops", Runtime.getRuntime().availableProcessors());
+    static final int CLIENT_THREADS = Integer.getInteger("sdp.peer.clientThreads", 4);
+    static final int SERVER_THREADS = Integer.getInteger("sdp.peer.serverThreads", 4);
+
+    private static final EventLoopGroup eventLoops = new NioEventLoopGroup(EVENT_LOOPS, new DefaultThreadFactory("peerEventLoop", true));
+    private static final ExecutorService client = Executors.newFixedThreadPool(CLIENT_THREADS, new DefaultThreadFactory("peerClient", true));
+    private static final ExecutorService server = Executors.newFixedThreadPool(SERVER_THREADS, new DefaultThreadFactory("peerServer", true));
+
+    private PeerExecutors(){}
+
+    static ManagedChannel channel(String address, int port){
+        return NettyChannelBuilder.forAddress(address, port)
+                .eventLoopGroup(eventLoops)
+                .channelType(NioSocketChannel.class)
+                .executor(client)
+                .usePlaintext(true)
+                .build();
+    }
+
+    /**
+     * the handlers of the service run on the server threads, the messages of a stream still one at a time and in order
+     */
+    static Server server(int port, BindableService service){
+        return NettyServerBuilder.forPort(port)
+                .bossEventLoopGroup(eventLoops)
+                .workerEventLoopGroup(eventLoops)
+                .channelType(NioServerSocketChannel.class)
+                .executor(server)
+                .addService(service)
+                .build();
+    }
+}
@@ -0,0 +1,326 @@
+package mk1.sdp.PeerToPeer;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import mk1.sdp.GRPC.HouseManagementGrpc;
+import mk1.sdp.GRPC.HouseManagementGrpc.HouseManagementStub;
+import mk1.sdp.GRPC.PeerMessages.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static mk1.sdp.misc.Common.*;
+
+/**
+ * the messages to one peer, sent on a single long-lived peerStream instead of a call each.
+ * the peer acks them cumulatively, every message up to upTo gets the same ack, so the callers still see an Ack per message.
+ * the stream is opened at the first message and again after an error; a peer that does not know peerStream
+ * (UNIMPLEMENTED) is sent its messages with the unary calls from then on, the ones waiting for an ack included.
+ * local and global means sent within sdp.peer.flushMs (default 20, 0 sends them one by one) of the first one are coalesced
+ * into one MeasureBatch, sent when the window ends or when it holds sdp.peer.batchSize means (default 64); every mean of the
+ * batch still gets its own Ack. a control message flushes the batch first, so the peer sees the messages in order.
+ * sdp.peer.stream=false always uses the unary calls, one per message
+ */
+class PeerLink {
+    static final boolean STREAMS = Boolean.parseBoolean(System.getProperty("sdp.peer.stream", "true"));
+
+    static final long FLUSH_MS = Long.getLong("sdp.peer.flushMs", 20);
+    static final int BATCH_SIZE = Math.max(1, Integer.getInteger("sdp.peer.batchSize", 64));
+
+    private static final Timer timer = new Timer("peerLinkTimer", true);     //deadlines and batch flushes
+
+    private final ManagedChannel channel;
+    private Call call;                  //null when there is no open stream
+    private boolean unary=!STREAMS;     //the peer does not support the stream
+    private Batch batch;                //means waiting for the end of the flush window, null if none
+
+    PeerLink(ManagedChannel channel){
+        this.channel=channel;
+    }
+
+    void send(PeerEnvelope.Builder body, StreamObserver<Ack> respObs){     //body gets the seq of the stream, send it to one link at a time
+        send(body, respObs, 0);
+    }
+
+    /**
+     * @param deadlineMs = time the ack may take before respObs gets DEADLINE_EXCEEDED, 0 for none
+     */
+    void send(PeerEnvelope.Builder body, StreamObserver<Ack> respObs, long deadlineMs){
+        Pending p;
+        synchronized (this){
+            if(!unary && FLUSH_MS>0 && deadlineMs==0 && coalesce(body, respObs)) return;
+
+            if(!unary){
+                flush();
+                p=stream().send(body, Collections.singletonList(respObs), deadlineMs);
+            }else
+                p=null;
+        }
+
+        if(p==null){
+            unary(body.build(), respObs, deadlineMs);
+            return;
+        }
+        if(deadlineMs>0){
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    if(p.call.expire(p))
+                        respObs.onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+                }
+            }, deadlineMs);
+        }
+    }
+
+    /**
+     * @return the ack of the message, completed on a gRPC thread
+     */
+    CompletableFuture<Ack> call(PeerEnvelope.Builder body, long deadlineMs){
+        CompletableFuture<Ack> f=new CompletableFuture<>();
+        send(body, new StreamObserver<Ack>() {
+            @Override
+            public void onNext(Ack ack) {
+                f.complete(ack);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                f.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        }, deadlineMs);
+        return f;
+    }
+
+    /**
+     * ends the stream after sending the batch, the messages already sent are still acked
+     */
+    synchronized void close(){
+        flush();
+        if(call==null) return;
+
+        call.requests.onCompleted();
+        call=null;
+    }
+
+    //region BATCH
+    private boolean coalesce(PeerEnvelope.Builder body, StreamObserver<Ack> respObs){     //called holding the link
+        boolean local= body.getBodyCase()==PeerEnvelope.BodyCase.MEASURE;
+        if(!local && body.getBodyCase()!=PeerEnvelope.BodyCase.GLOBALMEAN) return false;
+
+        if(batch==null){
+            Batch b=batch=new Batch();
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (PeerLink.this){
+                        if(batch==b) flush();
+                    }
+                }
+            }, FLUSH_MS);
+        }
+        batch.add(local, local? body.getMeasure() : body.getGlobalMean(), respObs);
+
+        if(batch.size()>=BATCH_SIZE) flush();
+        return true;
+    }
+
+    private void flush(){       //called holding the link
+        Batch b=batch;
+        if(b==null) return;
+        batch=null;
+
+        PeerEnvelope.Builder env=PeerEnvelope.newBuilder().setBatch(b.msg);
+        List<StreamObserver<Ack>> observers=b.observers();
+        if(unary)                               //the stream failed since the batch started
+            unary(env.build(), observers, 0);
+        else
+            stream().send(env, observers, 0);
+    }
+
+    private static final class Batch {
+        final MeasureBatch.Builder msg=MeasureBatch.newBuilder();
+        final List<StreamObserver<Ack>> localObs=new ArrayList<>();
+        final List<StreamObserver<Ack>> globalObs=new ArrayList<>();
+
+        void add(boolean local, Measure m, StreamObserver<Ack> respObs){
+            if(local){
+                msg.addLocal(m);
+                localObs.add(respObs);
+            }else{
+                msg.addGlobal(m);
+                globalObs.add(respObs);
+            }
+        }
+
+        int size(){
+            return localObs.size()+globalObs.size();
+        }
+
+        List<StreamObserver<Ack>> observers(){      //in the order of the batch: local then global
+            List<StreamObserver<Ack>> all=new ArrayList<>(localObs);
+            all.addAll(globalObs);
+            return all;
+        }
+    }
+    //endregion
+
+    private Call stream(){      //called holding the link
+        if(call==null) call=new Call();
+        return call;
+    }
+
+    /**
+     * sends the message with the unary calls, a batch one call per mean
+     * @param deadlineMs = of a single message, a batch never has one
+     */
+    private void unary(PeerEnvelope env, List<StreamObserver<Ack>> observers, long deadlineMs){
+        if(env.getBodyCase()!=PeerEnvelope.BodyCase.BATCH){
+            unary(env, observers.get(0), deadlineMs);
+            return;
+        }
+
+        MeasureBatch b=env.getBatch();
+        HouseManagementStub stub=HouseManagementGrpc.newStub(channel);
+        for(int i=0;i<b.getLocalCount();i++) stub.sendMeasure(b.getLocal(i), observers.get(i));
+        for(int i=0;i<b.getGlobalCount();i++) stub.sendGlobalMean(b.getGlobal(i), observers.get(b.getLocalCount()+i));
+    }
+
+    private void unary(PeerEnvelope env, StreamObserver<Ack> respObs, long deadlineMs){
+        HouseManagementStub stub=HouseManagementGrpc.newStub(channel);
+        if(deadlineMs>0) stub=stub.withDeadlineAfter(deadlineMs, TimeUnit.MILLISECONDS);
+
+        switch (env.getBodyCase()){
+            case MEASURE: stub.sendMeasure(env.getMeasure(), respObs);
+                break;
+            case GLOBALMEAN: stub.sendGlobalMean(env.getGlobalMean(), respObs);
+                break;
+            case ELECTION: stub.election(env.getElection(), respObs);
+                break;
+            case NEWCOORDINATOR: stub.newCoordinator(env.getNewCoordinator(), respObs);
+                break;
+            default: respObs.onError(Status.INTERNAL.withDescription("empty peer message").asRuntimeException());
+        }
+    }
+
+    private static final class Pending {
+        final Call call;
+        final long seq;
+        final PeerEnvelope env;
+        final List<StreamObserver<Ack>> observers;     //one per message, more than one for a batch
+        final long deadlineAt;                          //System.currentTimeMillis, 0 for none
+
+        Pending(Call call, long seq, PeerEnvelope env, List<StreamObserver<Ack>> observers, long deadlineMs){
+            this.call=call;
+            this.seq=seq;
+            this.env=env;
+            this.observers=observers;
+            this.deadlineAt= deadlineMs>0? System.currentTimeMillis()+deadlineMs : 0;
+        }
+
+        long remainingMs(){             //of the deadline for a resend, at least 1 so that it is kept
+            return deadlineAt==0? 0 : Math.max(1, deadlineAt-System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * one opened stream and the messages it has not acked yet, in sequence order
+     */
+    private final class Call implements StreamObserver<StreamAck> {
+        final StreamObserver<PeerEnvelope> requests;
+        private final ArrayDeque<Pending> pending=new ArrayDeque<>();
+        private long nextSeq=1;
+
+        Call(){
+            requests=HouseManagementGrpc.newStub(channel).peerStream(this);
+        }
+
+        Pending send(PeerEnvelope.Builder body, List<StreamObserver<Ack>> observers, long deadlineMs){     //called holding the link
+            PeerEnvelope env=body.setSeq(nextSeq++).build();
+            Pending p=new Pending(this, env.getSeq(), env, observers, deadlineMs);
+            pending.addLast(p);
+            requests.onNext(env);
+            return p;
+        }
+
+        boolean expire(Pending p){
+            synchronized (PeerLink.this){
+                return pending.remove(p);
+            }
+        }
+
+        @Override
+        public void onNext(StreamAck streamAck) {
+            List<Pending> acked=new ArrayList<>();
+            synchronized (PeerLink.this){
+                while(!pending.isEmpty() && pending.peekFirst().seq<=streamAck.getUpTo())
+                    acked.add(pending.pollFirst());
+            }
+            if(acked.isEmpty()) return;
+
+            Ack ack=Ack.newBuilder()
+                    .setAck(true)
+                    .setCoordinator(streamAck.getCoordinator())
+                    .setMessage("[REMOTE "+streamAck.getSender()+"]")
+                    .setLamportTimestamp(streamAck.getLamportTimestamp())
+                    .setSender(streamAck.getSender())
+                    .build();
+
+            for(Pending p:acked){       //outside the lock: a callback may send again
+                for(StreamObserver<Ack> respObs:p.observers){
+                    respObs.onNext(ack);
+                    respObs.onCompleted();
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            Status status=Status.fromThrowable(throwable);
+            List<Pending> lost;
+            boolean fallback;
+            synchronized (PeerLink.this){
+                if(call==this) call=null;
+                fallback= status.getCode()==Status.Code.UNIMPLEMENTED;
+                if(fallback) unary=true;
+
+                lost=new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            if(fallback){
+                printHigh("peer link", "peer at "+channel.authority()+" has no peerStream, using unary calls");
+                lost.forEach(p -> unary(p.env, p.observers, p.remainingMs()));      //the resend keeps what is left of the deadline
+                return;
+            }
+
+            StatusRuntimeException e=status.asRuntimeException();
+            lost.forEach(p -> p.observers.forEach(respObs -> respObs.onError(e)));
+        }
+
+        @Override
+        public void onCompleted() {
+            List<Pending> lost;
+            synchronized (PeerLink.this){
+                if(call==this) call=null;
+
+                lost=new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            StatusRuntimeException e=Status.UNAVAILABLE.withDescription("peer stream closed").asRuntimeException();
+            lost.forEach(p -> p.observers.forEach(respObs -> respObs.onError(e)));
+        }
+    }
+}
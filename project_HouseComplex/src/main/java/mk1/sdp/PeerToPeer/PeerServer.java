@@ -1,7 +1,6 @@
 package mk1.sdp.PeerToPeer;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 
 import java.io.IOException;
 import java.net.BindException;
@@ -22,7 +21,7 @@ public class PeerServer implements Runnable{
         this.address=parent.address;
         this.port=parent.port;
         this.parent=parent;
-        server= ServerBuilder.forPort(this.port).addService(new HouseManagementService(parent)).build();
+        server= PeerExecutors.server(this.port, new HouseManagementService(parent));
 
     }
 
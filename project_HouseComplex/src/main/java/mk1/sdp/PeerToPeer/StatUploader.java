@@ -0,0 +1,139 @@
+package mk1.sdp.PeerToPeer;
+
+import mk1.sdp.GRPC.PeerMessages.Measure;
+import mk1.sdp.GRPC.PeerMessages.StatBatch;
+import mk1.sdp.REST.Resources.BatchResult;
+import mk1.sdp.misc.Pair;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import static mk1.sdp.misc.Common.*;
+import static mk1.sdp.misc.ProtobufProvider.APPLICATION_PROTOBUF;
+import static mk1.sdp.misc.ProtobufProvider.APPLICATION_PROTOBUF_TYPE;
+
+/**
+ * collects the statistics to be sent to the REST server and uploads them in a single protobuf batch request every flush interval.
+ * if the server is unreachable or fails the batch is kept and retried at the next flush.
+ * the parts the server refused (house missing, statistics too late) would be refused again: they are only logged
+ */
+class StatUploader {
+    private static final long FLUSH_MS = Long.getLong("sdp.upload.flushMs", 200);
+    private static final int MAX_PENDING = Integer.getInteger("sdp.upload.maxPending", 10000);    //oldest statistics are dropped beyond this
+
+    private final int id;
+    private final WebTarget toBatch;
+    private final Timer timer;
+    private final Object sending=new Object();     //one batch at a time, so the statistics reach the server in order
+    private StatBatch.Builder pending;
+    private boolean stopped;
+
+    StatUploader(int id, WebTarget server){
+        this.id=id;
+        this.toBatch=server.path("/complex/batch");
+        this.pending=StatBatch.newBuilder();
+
+        timer=new Timer("daemonStatUploader", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_MS, FLUSH_MS);
+    }
+
+    synchronized void addLocal(Pair<Long, Double> measure){
+        if(stopped || isFull()) return;
+
+        pending.addLocal(Measure.newBuilder().setSenderID(id).setTimeStamp(measure.left).setMeasurement(measure.right));
+    }
+
+    synchronized void addGlobal(Pair<Long, Double> measure){
+        if(stopped || isFull()) return;
+
+        pending.addGlobal(Measure.newBuilder().setTimeStamp(measure.left).setMeasurement(measure.right));
+    }
+
+    private boolean isFull(){
+        if(pending.getLocalCount()+pending.getGlobalCount()<MAX_PENDING) return false;
+
+        printErr("too many statistics waiting for the server, the newest one is dropped");
+        return true;
+    }
+
+    /**
+     * sends everything collected so far in one request
+     * @return true if it was NOT able to send the request to the server
+     */
+    boolean flush(){
+        synchronized (sending) {
+            StatBatch batch;
+            synchronized (this) {
+                if (pending.getLocalCount()==0 && pending.getGlobalCount()==0) return false;
+
+                batch = pending.build();
+                pending = StatBatch.newBuilder();
+            }
+
+            Response resp;
+            try {
+                resp = toBatch.request(MediaType.APPLICATION_JSON).header("content-type", APPLICATION_PROTOBUF).put(Entity.entity(batch, APPLICATION_PROTOBUF_TYPE));
+            } catch (ProcessingException e) {
+                printErr("server unreachable. " + (batch.getLocalCount()+batch.getGlobalCount()) + " statistics will be retried");
+                requeue(batch);
+                return true;
+            } catch (IllegalStateException e) {
+                printErr("connection to server closed");
+                return true;
+            }
+
+            try {
+                return handle(resp, batch);
+            } finally {
+                resp.close();
+            }
+        }
+    }
+
+    private boolean handle(Response resp, StatBatch batch){
+        int status=resp.getStatus();
+        if(status==Response.Status.OK.getStatusCode()) return false;
+
+        if(status==Response.Status.NOT_ACCEPTABLE.getStatusCode()){        //stored part by part: only the refused parts are lost
+            BatchResult r=resp.readEntity(BatchResult.class);
+            if(r.localRefused>0)
+                printErr(r.localRefused+" statistics of the houses "+r.refusedHouses+" refused by the server (house missing or statistics too late)");
+            if(r.globalRefused>0)
+                printErr(r.globalRefused+" global statistics refused by the server (too late)");
+            return false;
+        }
+
+        if(status>=500){        //nothing to blame on the statistics: they are sent again
+            printErr("server error "+status+". "+(batch.getLocalCount()+batch.getGlobalCount())+" statistics will be retried");
+            requeue(batch);
+            return true;
+        }
+        return responseHasError(resp);      //malformed batch: sending it again won't help
+    }
+
+    /**
+     * stops the periodic upload after sending what is still pending
+     */
+    void stop(){
+        timer.cancel();
+        flush();
+        synchronized (this){
+            stopped=true;
+        }
+    }
+
+    private synchronized void requeue(StatBatch batch){      //the failed batch goes back in front of the statistics collected in the meantime
+        pending=batch.toBuilder().mergeFrom(pending.build());
+    }
+}
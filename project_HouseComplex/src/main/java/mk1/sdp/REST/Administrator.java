@@ -3,7 +3,12 @@ package mk1.sdp.REST;
 import static mk1.sdp.misc.Common.*;
 import mk1.sdp.REST.Resources.Complex;
 import mk1.sdp.REST.Resources.Home;
+import mk1.sdp.REST.Resources.StatRecord;
+import mk1.sdp.GRPC.PeerMessages.MeanDeviation;
+import mk1.sdp.GRPC.PeerMessages.Measure;
+import mk1.sdp.GRPC.PeerMessages.StatList;
 import mk1.sdp.misc.Pair;
+import mk1.sdp.misc.ProtobufProvider;
 
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.media.sse.EventListener;
@@ -15,6 +20,7 @@ import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -40,7 +46,7 @@ public class Administrator {
     private Administrator(){
         fromShell=new Scanner(System.in);
 
-        ClientConfig c=new ClientConfig();
+        ClientConfig c=new ClientConfig(ProtobufProvider.class);      //statistics are read as protobuf
         client= ClientBuilder.newClient(c);
         webTarget=client.target(getBaseURI(""));
 
@@ -75,6 +81,12 @@ public class Administrator {
                     break;
                 case 5: getGlobalMeanDev();
                     break;
+                case 6: followStatistics(false);
+                    break;
+                case 7: followStatistics(true);
+                    break;
+                case 8: getTopConsumers();
+                    break;
                 default:
                         printHigh("admin","closing the client...");
                         fromShell.close();      //closing the input stream before leaving
@@ -107,7 +119,7 @@ public class Administrator {
 
         WebTarget wt = webTarget.path("complex");
 
-        Response response= obtainResponse(wt);
+        Response response= obtainResponse(wt, MediaType.APPLICATION_JSON_TYPE);
 
         if(response==null)return;
 
@@ -130,7 +142,7 @@ public class Administrator {
         Pair<Integer, Integer> p = askParam(true);
 
         WebTarget wt=webTarget.path("/complex/house/stat").queryParam("id", p.left).queryParam("n", p.right);
-        Response response= obtainResponse(wt);
+        Response response= obtainResponse(wt, ProtobufProvider.APPLICATION_PROTOBUF_TYPE);
         if(response==null)return;
 
         if(responseHasError(response)) return;
@@ -145,7 +157,7 @@ public class Administrator {
 
         WebTarget wt=webTarget.path("/complex/global/stat").queryParam("n", p.right);
 
-        Response response= obtainResponse(wt);
+        Response response= obtainResponse(wt, ProtobufProvider.APPLICATION_PROTOBUF_TYPE);
         if(response==null)return;
 
 
@@ -158,7 +170,7 @@ public class Administrator {
         Pair<Integer, Integer> p = askParam(true);
 
         WebTarget wt=webTarget.path("/complex/house/meanDev").queryParam("id", p.left).queryParam("n", p.right);
-        Response response= obtainResponse(wt);
+        Response response= obtainResponse(wt, ProtobufProvider.APPLICATION_PROTOBUF_TYPE);
         if(response==null)return;
 
         if(responseHasError(response)) return;
@@ -171,7 +183,7 @@ public class Administrator {
         Pair<Integer, Integer> p = askParam(false);
 
         WebTarget wt=webTarget.path("/complex/global/meanDev").queryParam("n", p.right);
-        Response response= obtainResponse(wt);
+        Response response= obtainResponse(wt, ProtobufProvider.APPLICATION_PROTOBUF_TYPE);
         if(response==null)return;
 
         if(responseHasError(response)) return;
@@ -180,9 +192,66 @@ public class Administrator {
         response.close();
     }
 
+    private void getTopConsumers() {      //a single request: the server keeps the houses ordered by their mean
+        int k;
+        int window;
+        do {
+            print("Insert how many houses to show:\n");
+            k = readInputInteger(fromShell,"input must be of positive digit");
+        } while (k <= 0);
+        do {
+            print("Insert over how many of their last statistics (1 for the last one):\n");
+            window = readInputInteger(fromShell,"input must be of positive digit");
+        } while (window <= 0);
+
+        WebTarget wt=webTarget.path("/complex/top").queryParam("k", k).queryParam("window", window);
+        Response response= obtainResponse(wt, MediaType.APPLICATION_JSON_TYPE);
+        if(response==null)return;
+
+        if(responseHasError(response)) return;
+
+        List<Pair<Integer,Double>> top=response.readEntity(new GenericType<List<Pair<Integer,Double>>>(){});
+        response.close();
+        if(top.isEmpty()){
+            print("No house has sent statistics so far...");
+            return;
+        }
+
+        printHigh("admin","output from server: ");
+        print("The "+top.size()+" houses with the highest mean of the last "+window+" statistics:");
+        for(int i=0;i<top.size();i++){
+            print("\t"+(i+1)+") House "+top.get(i).left+": "+top.get(i).right);
+        }
+    }
+
     //endregion
 
+    //region LIVE STATISTICS
+    private void followStatistics(boolean isHouse){     //prints every statistic pushed by the server until Return is pressed
+        int id=-1;
+        if(isHouse) {
+            do {
+                print("Insert the HomeID of the house:\n");
+                id = readInputInteger(fromShell,"input must be of positive digit");
+            } while (id < 0);
+        }
+
+        WebTarget wt= isHouse? pushListenerClient.target(getBaseURI("stream/house")).queryParam("id", id) : pushListenerClient.target(getBaseURI("stream/global"));
+        EventSource source=EventSource.target(wt).build();
+        String pretty= isHouse? "House "+id+":" : "Complex :";
 
+        source.register(ev -> {
+            StatRecord r=ev.readData(StatRecord.class, MediaType.APPLICATION_JSON_TYPE);
+            printMeasure(pretty, Pair.of(r.timestamp, r.measure));
+        });
+        source.open();      //reconnects by itself, resuming from the last statistic received
+
+        printHigh("admin","following the statistics, press Return to stop");
+        fromShell.nextLine();       //rest of the line of the choice
+        fromShell.nextLine();
+        source.close();
+    }
+    //endregion
 
     private Pair<Integer,Integer> askParam(boolean isHouse) {
         int id = -1;
@@ -203,20 +272,20 @@ public class Administrator {
         return Pair.of(id,n);
     }
 
-    private Response obtainResponse(WebTarget wt, int ...retries){
+    private Response obtainResponse(WebTarget wt, MediaType accepted, int ...retries){
         Response response=null;
         try {
-            response = wt.request(MediaType.APPLICATION_JSON).header("content-type", MediaType.APPLICATION_JSON).get();
+            response = wt.request(accepted).get();
         }catch(ProcessingException e){
             if(retries.length==0){
                 printErr("Connection refused by server.\tretrying...");
                 timeWaster(5);
-                return obtainResponse(wt,1);
+                return obtainResponse(wt,accepted,1);
             }
             if (retries[0]<5) {
                 printErr("Connection refused by server.\tretrying...");
                 timeWaster(5);
-                return obtainResponse(wt,retries[0]+1);
+                return obtainResponse(wt,accepted,retries[0]+1);
             }
             else {
                 printErr("unable to connect to server.\n try again later...");
@@ -238,11 +307,14 @@ public class Administrator {
                     "Press -3- to obtain the list of the last statistics of the complex\n"+
                     "Press -4- to obtain the Mean and Standard Deviation of the last N statistics of a house\n"+
                     "Press -5- to obtain the Mean and Standard Deviation of the last N statistics of  the complex\n"+
+                    "Press -6- to follow the statistics of the complex as they arrive\n"+
+                    "Press -7- to follow the statistics of a House as they arrive\n"+
+                    "Press -8- to obtain the houses with the highest consumption\n"+
                     "Press -0- to close the administrator client\n"+
                     "##########################################################\n");
-            val= readInputInteger(fromShell,"input must be between 0 and 5");
+            val= readInputInteger(fromShell,"input must be between 0 and 8");
 
-        }while(val<0||val>5);
+        }while(val<0||val>8);
         return val;
     }
 
@@ -250,17 +322,17 @@ public class Administrator {
         String pretty=    id==-1?"Complex :":"House "+id+":";
         String prettyErr= id==-1?"Complex":"House "+id;
 
-        Pair[] mes=resp.readEntity(Pair[].class);
-        if(mes==null || mes.length<1){
+        StatList mes=resp.readEntity(StatList.class);
+        if(mes==null || mes.getMeasuresCount()<1){
             print(prettyErr+" hasn't any statistics so far...");
             return;
         }
 
         printHigh("admin","output from server: ");
-        print("Last "+mes.length+" statistics of "+pretty);
+        print("Last "+mes.getMeasuresCount()+" statistics of "+pretty);
 
-        for(Pair<Long,Double> m:convertPairs(mes)){
-            printMeasure(pretty, m);
+        for(Measure m:mes.getMeasuresList()){
+            printMeasure(pretty, Pair.of(m.getTimeStamp(), m.getMeasurement()));
         }
 
     }
@@ -269,35 +341,18 @@ public class Administrator {
         String pretty=    id==-1?"the Complex":"House "+id;
         String prettyErr= id==-1?"The Complex":"The House "+id;
 
-        Pair meanDev = response.readEntity(Pair.class);
-
-
-        if (meanDev==null || !(meanDev.left instanceof Double) || !(meanDev.right instanceof Double)){
+        if(!response.hasEntity()){
             print(prettyErr + " hasn't any statistics for the calculation yet...");
             return;
         }
+        MeanDeviation meanDev = response.readEntity(MeanDeviation.class);
 
         printHigh("admin","output from server: ");
         print("The mean and standard deviation of "+pretty+" are:"
-                +"\n\t Mean= "+meanDev.left
-                +"\n\t StdDev= "+meanDev.right);
+                +"\n\t Mean= "+meanDev.getMean()
+                +"\n\t StdDev= "+meanDev.getDeviation());
 
     }
     //endregion
 
-    private List<Pair<Long,Double>> convertPairs(Pair[] origin){
-        List<Pair<Long,Double>> tmp=new ArrayList<>();
-
-        for (Pair x:origin) {
-
-            long x1=(Long)x.left;
-            Double x2=(Double)x.right;
-
-            tmp.add(Pair.of(x1, x2));
-
-        }
-        return tmp;
-
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+package mk1.sdp.REST.Ingest;
+
+import mk1.sdp.REST.Metrics.Metrics;
+import mk1.sdp.REST.Resources.Complex;
+import mk1.sdp.misc.Pair;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static mk1.sdp.misc.Common.printErr;
+
+/**
+ * asynchronous ingest of the statistics (-Dsdp.ingest.async=true): a request only validates the statistic and puts it
+ * in the ring of its shard, a single writer thread per shard stores it in the complex.
+ * a house always goes to the same shard, so its statistics keep their order; the global ones all go to shard 0.
+ * <p>
+ * every accepted statistic gets a token "shard:sequence", a reader passing it back waits until that statistic is stored
+ */
+public class IngestPipeline {
+    public static final boolean ASYNC = Boolean.getBoolean("sdp.ingest.async");
+    private static final int SHARDS = Integer.getInteger("sdp.ingest.shards", 2);
+    private static final int RING_SIZE = Integer.getInteger("sdp.ingest.ringSize", 1<<13);     //per shard, power of 2
+    private static final int BATCH = 256;           //events handled by a writer between two checks of the others
+
+    private static volatile IngestPipeline instance;
+
+    private final Complex complex;
+    private final Shard[] shards;
+    private final AtomicLong rejected=new AtomicLong();     //refused by the complex when applied: too late or house gone
+
+    /**
+     * starts the writers if the asynchronous ingest is enabled
+     * @return the pipeline, null if the statistics are stored synchronously
+     */
+    public static IngestPipeline start(Complex complex){
+        if(!ASYNC) return null;
+
+        instance=new IngestPipeline(complex);
+        return instance;
+    }
+
+    /**
+     * @return the running pipeline, null if the statistics are stored synchronously
+     */
+    public static IngestPipeline get(){
+        return instance;
+    }
+
+    private IngestPipeline(Complex complex){
+        this.complex=complex;
+        shards=new Shard[SHARDS];
+        for(int i=0;i<SHARDS;i++){
+            shards[i]=new Shard(i);
+            shards[i].start();
+        }
+        Metrics.gauge("sdp_ingest_queued", "statistics accepted and not yet stored", this::getQueued);
+        Metrics.counter("sdp_ingest_rejected_total", "accepted statistics refused by the complex when stored", this::getRejected);
+    }
+
+    //region PRODUCERS
+    /**
+     * @return the token of the statistic, null if the ring of its shard is full
+     */
+    public String submitLocal(int houseID, long timestamp, double measure){
+        return submit(shardOf(houseID), houseID, timestamp, measure);
+    }
+
+    public String submitGlobal(long timestamp, double measure){
+        return submit(shards[0], -1, timestamp, measure);
+    }
+
+    private String submit(Shard s, int house, long timestamp, double measure){
+        long seq=s.ring.offer(house, timestamp, measure);
+        if(seq<0) return null;
+
+        LockSupport.unpark(s);
+        return s.id+":"+seq;
+    }
+
+    private Shard shardOf(int houseID){
+        return shards[Math.floorMod(houseID, shards.length)];
+    }
+    //endregion
+
+    //region READ YOUR WRITES
+    /**
+     * waits until the statistic with the given token is stored in the complex
+     * @return false if it is not stored within the timeout
+     * @throws IllegalArgumentException if the token is not one given by this pipeline
+     */
+    public boolean awaitApplied(String token, long timeoutMs) throws InterruptedException {
+        String[] parts=token.split(":");
+        int shard;
+        long seq;
+        try {
+            shard=Integer.parseInt(parts[0]);
+            seq=Long.parseLong(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("malformed ingest token "+token);
+        }
+        if(parts.length!=2 || shard<0 || shard>=shards.length) throw new IllegalArgumentException("unknown ingest token "+token);
+
+        return shards[shard].awaitApplied(seq, timeoutMs);
+    }
+    //endregion
+
+    //region METRICS
+    public int getQueued(){
+        int n=0;
+        for(Shard s:shards) n+=s.ring.size();
+        return n;
+    }
+
+    public long getRejected(){
+        return rejected.get();
+    }
+    //endregion
+
+    /**
+     * stores what is still in the rings and stops the writers
+     */
+    public void stop(){
+        for(Shard s:shards) s.running=false;
+        for(Shard s:shards){
+            LockSupport.unpark(s);
+            try {
+                s.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //region SHARD
+    private final class Shard extends Thread implements IngestRing.Handler {
+        private final int id;
+        private final IngestRing ring;
+        private volatile long applied=-1;           //last sequence stored in the complex
+        private final Object appliedLock=new Object();
+        private int waiting;                        //readers waiting on appliedLock, guarded by it
+        private volatile boolean running=true;
+
+        Shard(int id){
+            super("ingestWriter-"+id);
+            this.id=id;
+            this.ring=new IngestRing(RING_SIZE);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int idle=0;
+            while(true){
+                int n=ring.drain(this, BATCH);
+                if(n>0){
+                    idle=0;
+                    wakeReaders();
+                    continue;
+                }
+                if(!running) return;         //stopped and nothing left
+
+                if(++idle<100) Thread.onSpinWait();
+                else LockSupport.park(this);     //woken up by the next producer, an unpark between the drain and here is not lost
+            }
+        }
+
+        @Override
+        public void onEvent(long sequence, int house, long timestamp, double measure) {
+            try {
+                boolean stored= house==-1?
+                        complex.addGlobalStat(Pair.of(timestamp, measure)) :
+                        complex.addLocalStat(house, Pair.of(timestamp, measure));
+                if(!stored) rejected.incrementAndGet();
+            } catch (RuntimeException e) {
+                rejected.incrementAndGet();
+                printErr("statistic "+id+":"+sequence+" not stored: "+e);
+            }
+            applied=sequence;
+        }
+
+        private void wakeReaders(){
+            synchronized (appliedLock){
+                if(waiting>0) appliedLock.notifyAll();
+            }
+        }
+
+        boolean awaitApplied(long seq, long timeoutMs) throws InterruptedException {
+            if(applied>=seq) return true;
+
+            long deadline=System.currentTimeMillis()+timeoutMs;
+            synchronized (appliedLock){
+                waiting++;
+                try {
+                    long left;
+                    while(applied<seq && (left=deadline-System.currentTimeMillis())>0){
+                        appliedLock.wait(left);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+            return applied>=seq;
+        }
+    }
+    //endregion
+}
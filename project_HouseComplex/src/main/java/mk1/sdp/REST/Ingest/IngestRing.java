@@ -0,0 +1,77 @@
+package mk1.sdp.REST.Ingest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * bounded multi-producer single-consumer ring of statistics, in the style of the LMAX disruptor:
+ * the slots are preallocated parallel arrays, producers claim a sequence with a CAS and publish the slot
+ * by writing the sequence in it, the consumer reads the slots in sequence order. no locks on either side
+ */
+final class IngestRing {
+    private final int mask;
+    private final int[] houses;             //-1 for a global statistic
+    private final long[] timestamps;
+    private final double[] measures;
+    private final AtomicLongArray published;    //sequence of the event in the slot, once it can be read
+
+    private final AtomicLong claimed=new AtomicLong(-1);    //last sequence given to a producer
+    private volatile long consumed=-1;                      //last sequence read by the consumer
+
+    IngestRing(int capacity){
+        if(Integer.bitCount(capacity)!=1) throw new IllegalArgumentException("the capacity must be a power of 2: "+capacity);
+
+        mask=capacity-1;
+        houses=new int[capacity];
+        timestamps=new long[capacity];
+        measures=new double[capacity];
+        published=new AtomicLongArray(capacity);
+        for(int i=0;i<capacity;i++) published.set(i, -1);
+    }
+
+    /**
+     * @return the sequence of the event, -1 if the ring is full
+     */
+    long offer(int house, long timestamp, double measure){
+        long seq;
+        do {
+            seq=claimed.get()+1;
+            if(seq-houses.length>consumed) return -1;       //the slot still holds an event not yet read
+        } while(!claimed.compareAndSet(seq-1, seq));
+
+        int slot=(int)(seq & mask);
+        houses[slot]=house;
+        timestamps[slot]=timestamp;
+        measures[slot]=measure;
+        published.lazySet(slot, seq);       //ordered after the writes above: the consumer sees the whole event
+        return seq;
+    }
+
+    /**
+     * reads the next events in order, up to the first one not yet published.
+     * only the consumer thread calls it
+     * @return how many events were given to the handler
+     */
+    int drain(Handler handler, int max){
+        long next=consumed+1;
+        int n=0;
+        while(n<max){
+            int slot=(int)(next & mask);
+            if(published.get(slot)!=next) break;
+
+            handler.onEvent(next, houses[slot], timestamps[slot], measures[slot]);
+            consumed=next;          //frees the slot
+            next++;
+            n++;
+        }
+        return n;
+    }
+
+    int size(){
+        return (int)(claimed.get()-consumed);
+    }
+
+    interface Handler {
+        void onEvent(long sequence, int house, long timestamp, double measure);
+    }
+}
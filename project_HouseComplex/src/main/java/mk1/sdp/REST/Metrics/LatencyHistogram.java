@@ -0,0 +1,92 @@
+package mk1.sdp.REST.Metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * histogram of durations in nanoseconds with log-linear buckets, in the style of HdrHistogram:
+ * every power of 2 is split in 16 buckets, so a value is known within ~6% from 1ns up to ~68s (longer ones count as 68s).
+ * recording is a couple of atomic increments, no lock and no allocation
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1<<SUB_BITS;         //buckets per power of 2
+    private static final int MAX_EXP = 35;              //2^36ns ~ 68s
+    static final int BUCKETS = SUB+(MAX_EXP-SUB_BITS+1)*SUB;
+    private static final long MAX_VALUE = upperBound(BUCKETS-1);
+
+    private final AtomicLongArray counts=new AtomicLongArray(BUCKETS);
+    private final LongAdder sum=new LongAdder();
+
+    public void record(long nanos){
+        if(nanos<0) nanos=0;            //nanoTime of another core may be slightly behind
+
+        counts.incrementAndGet(index(Math.min(nanos, MAX_VALUE)));
+        sum.add(nanos);
+    }
+
+    public void recordSince(long startNanos){
+        record(System.nanoTime()-startNanos);
+    }
+
+    //region SNAPSHOT
+    /**
+     * the counts at the time of the call, one bucket at a time: concurrent records may be partially included
+     */
+    public long[] counts(){
+        long[] c=new long[BUCKETS];
+        for(int i=0;i<BUCKETS;i++) c[i]=counts.get(i);
+        return c;
+    }
+
+    public long sumNanos(){
+        return sum.sum();
+    }
+
+    /**
+     * @return how many values of the given counts are not greater than the bound, within the precision of the buckets
+     */
+    public static long countAtMost(long[] counts, long boundNanos){
+        int last=index(Math.min(boundNanos, MAX_VALUE));
+        long n=0;
+        for(int i=0;i<=last;i++) n+=counts[i];
+        return n;
+    }
+
+    /**
+     * @return the value under which the given fraction of the counts is, 0 if there are none
+     */
+    public static long quantile(long[] counts, double q){
+        long total=0;
+        for(long c:counts) total+=c;
+        if(total==0) return 0;
+
+        long rank=(long)Math.ceil(q*total);
+        long seen=0;
+        for(int i=0;i<counts.length;i++){
+            seen+=counts[i];
+            if(seen>=rank) return upperBound(i);
+        }
+        return MAX_VALUE;
+    }
+    //endregion
+
+    //region BUCKETS
+    static int index(long v){
+        if(v<SUB) return (int)v;            //one bucket per value below 16ns
+
+        int exp=63-Long.numberOfLeadingZeros(v);
+        int sub=(int)(v>>>(exp-SUB_BITS)) & (SUB-1);        //the 4 bits after the leading one
+        return SUB+(exp-SUB_BITS)*SUB+sub;
+    }
+
+    static long upperBound(int index){     //largest value counted in the bucket
+        if(index<SUB) return index;
+
+        int exp=(index-SUB)/SUB+SUB_BITS;
+        int sub=(index-SUB)%SUB;
+        long lower=(long)(SUB+sub)<<(exp-SUB_BITS);
+        return lower+(1L<<(exp-SUB_BITS))-1;
+    }
+    //endregion
+}
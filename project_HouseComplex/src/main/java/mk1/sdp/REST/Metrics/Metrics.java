@@ -0,0 +1,143 @@
+package mk1.sdp.REST.Metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * registry of the metrics of the server, written at /metrics in the Prometheus text format.
+ * a metric is a family name plus its labels; asking again for the same name and labels returns the same metric,
+ * so the hot paths keep it in a field and never look it up
+ */
+public final class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String[] BOUNDS = {     //seconds, le of the Prometheus histograms
+            "0.00001", "0.000025", "0.00005", "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    private enum Type { counter, gauge, histogram }
+
+    private static final ConcurrentSkipListMap<String,Family> families=new ConcurrentSkipListMap<>();     //sorted: the output is stable
+
+    private Metrics(){}
+
+    //region REGISTRATION
+    /**
+     * @param labels = alternating names and values
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels){
+        return (LatencyHistogram) family(name, help, Type.histogram).metrics.computeIfAbsent(labels(labels), k -> new LatencyHistogram());
+    }
+
+    public static LongAdder counter(String name, String help, String... labels){
+        return (LongAdder) family(name, help, Type.counter).metrics.computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /**
+     * a counter kept somewhere else, read at every scrape. replaces the one with the same name and labels
+     */
+    public static void counter(String name, String help, DoubleSupplier value, String... labels){
+        family(name, help, Type.counter).metrics.put(labels(labels), value);
+    }
+
+    /**
+     * a value read at every scrape. replaces the one with the same name and labels
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels){
+        family(name, help, Type.gauge).metrics.put(labels(labels), value);
+    }
+
+    /**
+     * removes the metric with the given name and labels, e.g. of something that is gone. the family stays
+     */
+    public static void remove(String name, String... labels){
+        Family f=families.get(name);
+        if(f!=null) f.metrics.remove(labels(labels));
+    }
+
+    private static Family family(String name, String help, Type type){
+        Family f=families.computeIfAbsent(name, n -> new Family(help, type));
+        if(f.type!=type) throw new IllegalArgumentException(name+" is already a "+f.type);
+        return f;
+    }
+
+    private static String labels(String... labels){         //{a="1",b="2"}, in the given order
+        if(labels.length%2!=0) throw new IllegalArgumentException("labels must be name/value pairs");
+        if(labels.length==0) return "";
+
+        StringBuilder sb=new StringBuilder("{");
+        for(int i=0;i<labels.length;i+=2){
+            if(i>0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            escape(labels[i+1], sb);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void escape(String value, StringBuilder sb){
+        for(int i=0;i<value.length();i++){
+            char c=value.charAt(i);
+            if(c=='\\' || c=='"') sb.append('\\').append(c);
+            else if(c=='\n') sb.append("\\n");
+            else sb.append(c);
+        }
+    }
+    //endregion
+
+    //region EXPOSITION
+    public static void write(Writer w) throws IOException {
+        for(Map.Entry<String,Family> e:families.entrySet()){
+            String name=e.getKey();
+            Family f=e.getValue();
+            w.write("# HELP "+name+" "+f.help+"\n");
+            w.write("# TYPE "+name+" "+f.type+"\n");
+
+            for(Map.Entry<String,Object> m:f.metrics.entrySet()){
+                Object metric=m.getValue();
+                if(metric instanceof LatencyHistogram) writeHistogram(w, name, m.getKey(), (LatencyHistogram) metric);
+                else if(metric instanceof LongAdder) writeSample(w, name, m.getKey(), ((LongAdder) metric).sum());
+                else writeSample(w, name, m.getKey(), ((DoubleSupplier) metric).getAsDouble());
+            }
+        }
+    }
+
+    private static void writeHistogram(Writer w, String name, String labels, LatencyHistogram h) throws IOException {
+        long[] counts=h.counts();
+        String prefix= labels.isEmpty()? "{" : labels.substring(0, labels.length()-1)+",";
+
+        long total=0;
+        for(long c:counts) total+=c;
+        for(String b:BOUNDS){
+            long n=LatencyHistogram.countAtMost(counts, (long)(Double.parseDouble(b)*1e9));
+            w.write(name+"_bucket"+prefix+"le=\""+b+"\"} "+n+"\n");
+        }
+        w.write(name+"_bucket"+prefix+"le=\"+Inf\"} "+total+"\n");
+        w.write(name+"_sum"+labels+" "+h.sumNanos()/1e9+"\n");
+        w.write(name+"_count"+labels+" "+total+"\n");
+    }
+
+    private static void writeSample(Writer w, String name, String labels, double value) throws IOException {
+        w.write(name+labels+" ");
+        if(value==(long)value) w.write(Long.toString((long)value));       //counters without a useless .0
+        else w.write(Double.toString(value));
+        w.write("\n");
+    }
+    //endregion
+
+    private static final class Family {
+        final String help;
+        final Type type;
+        final ConcurrentSkipListMap<String,Object> metrics=new ConcurrentSkipListMap<>();
+
+        Family(String help, Type type){
+            this.help=help;
+            this.type=type;
+        }
+    }
+}
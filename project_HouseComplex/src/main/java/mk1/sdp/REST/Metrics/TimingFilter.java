@@ -0,0 +1,87 @@
+package mk1.sdp.REST.Metrics;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * times every request matched to a resource method: from the match to the response (sdp_http_request_seconds,
+ * by endpoint and status class) and the write of the body (sdp_http_write_seconds), which for a streamed body
+ * is the whole transfer. the histograms of an endpoint are looked up once, then found by method
+ */
+@Provider
+public class TimingFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+    private static final String START = "sdp.metrics.start";
+    private static final String TIMERS = "sdp.metrics.timers";
+
+    private final ConcurrentHashMap<Method,Timers> timers=new ConcurrentHashMap<>();
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {     //after the match: the endpoint is known
+        Method m=resourceInfo.getResourceMethod();
+        if(m==null) return;
+
+        request.setProperty(TIMERS, timers.computeIfAbsent(m, k -> new Timers(resourceInfo.getResourceClass().getSimpleName()+"."+k.getName())));
+        request.setProperty(START, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+        Object start=request.getProperty(START);
+        if(start==null) return;         //not matched, or failed before the resource
+
+        Timers t=(Timers) request.getProperty(TIMERS);
+        t.byStatus(response.getStatus()).recordSince((Long) start);
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        Timers t=(Timers) context.getProperty(TIMERS);
+        if(t==null){
+            context.proceed();
+            return;
+        }
+
+        long start=System.nanoTime();
+        try {
+            context.proceed();
+        } finally {
+            t.write.recordSince(start);
+        }
+    }
+
+    private static final class Timers {
+        private final String endpoint;
+        private final LatencyHistogram[] requests=new LatencyHistogram[5];     //1xx..5xx, registered when first seen
+        private final LatencyHistogram write;
+
+        Timers(String endpoint){
+            this.endpoint=endpoint;
+            write=Metrics.histogram("sdp_http_write_seconds", "time to serialize and write a response body", "endpoint", endpoint);
+        }
+
+        LatencyHistogram byStatus(int status){
+            int i=Math.max(1, Math.min(5, status/100))-1;
+            LatencyHistogram h=requests[i];
+            if(h==null){        //racing threads get the same histogram from the registry
+                h=Metrics.histogram("sdp_http_request_seconds", "time from the match of a request to its response, body excluded",
+                        "endpoint", endpoint, "status", (i+1)+"xx");
+                requests[i]=h;
+            }
+            return h;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package mk1.sdp.REST.Persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * files of the suspended houses evicted from memory, one per house: where it was listening and its last measures.
+ * a file is written to a temporary name and then renamed, so a crash leaves either the old file or the new one.
+ * a file is read back by taking it: renamed to a name of the reader first, so two readers never both get it.
+ * the taken file stays until the reader releases it (its statistics are back in memory), a crash in between
+ * leaves it to be given back at the next start. a file that can't be read is kept aside as .corrupt
+ */
+public class HouseSpill {
+    private static final int MAGIC = 0x53505331;        //"SPS1"
+    private static final String PREFIX = "house-";
+    private static final String SUFFIX = ".spill";
+    private static final String TAKEN = ".taken-";
+    private static final String CORRUPT = ".corrupt";
+
+    private final File dir;
+
+    /**
+     * the content of the file of a house
+     */
+    public static final class Spilled {
+        public final int houseID;
+        public final String address;
+        public final int listeningPort;
+        public final long[] timestamps;
+        public final double[] measures;
+
+        Spilled(int houseID, String address, int listeningPort, long[] timestamps, double[] measures){
+            this.houseID=houseID;
+            this.address=address;
+            this.listeningPort=listeningPort;
+            this.timestamps=timestamps;
+            this.measures=measures;
+        }
+    }
+
+    /**
+     * @param dir = directory of the files, created if missing
+     */
+    public HouseSpill(File dir) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("unable to create the directory "+dir);
+        this.dir=dir;
+
+        String[] taken=dir.list((d, name) -> name.startsWith(PREFIX) && name.contains(SUFFIX+TAKEN));
+        if(taken==null) return;
+        for(String name:taken){             //taken by a run that stopped before storing them again: they are still spilled
+            File original=new File(dir, name.substring(0, name.indexOf(TAKEN)));
+            File f=new File(dir, name);
+            if(original.exists() || !f.renameTo(original)) f.delete();
+        }
+    }
+
+    /**
+     * replaces the file of the house with the given measures, the first count of the arrays in timestamp order
+     */
+    public void write(int houseID, String address, int listeningPort, long[] timestamps, double[] measures, int count) throws IOException {
+        File tmp=new File(dir, PREFIX+houseID+SUFFIX+".tmp");
+        try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(houseID);
+            out.writeBoolean(address!=null);
+            if(address!=null) out.writeUTF(address);
+            out.writeInt(listeningPort);
+            out.writeInt(count);
+            for(int i=0;i<count;i++){
+                out.writeLong(timestamps[i]);
+                out.writeDouble(measures[i]);
+            }
+        }
+        Files.move(tmp.toPath(), file(houseID).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * takes the file of the house and reads it, the same thread releases it once the content is stored elsewhere
+     * @return the content of the file of the house, null if there is none (or another thread has taken it)
+     * @throws IOException if the file can't be read: it is renamed to .corrupt, not deleted
+     */
+    public Spilled take(int houseID) throws IOException {
+        File taken=taken(houseID);
+        try {
+            Files.move(file(houseID).toPath(), taken.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try {
+            return read(taken, houseID);
+        } catch (IOException e) {
+            Files.move(taken.toPath(), new File(dir, PREFIX+houseID+SUFFIX+CORRUPT).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            throw e;
+        }
+    }
+
+    /**
+     * deletes the file taken by this thread
+     */
+    public void release(int houseID){
+        taken(houseID).delete();
+    }
+
+    /**
+     * @return true if a thread has taken the file of the house and not released it yet
+     */
+    public boolean isTaken(int houseID){
+        String[] names=dir.list((d, name) -> name.startsWith(PREFIX+houseID+SUFFIX+TAKEN));
+        return names!=null && names.length>0;
+    }
+
+    /**
+     * @return the IDs of the houses with a file
+     */
+    public List<Integer> houses(){
+        List<Integer> ids=new ArrayList<>();
+        String[] names=dir.list((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if(names==null) return ids;
+
+        for(String name:names){
+            try {
+                ids.add(Integer.parseInt(name.substring(PREFIX.length(), name.length()-SUFFIX.length())));
+            } catch (NumberFormatException ignored) {}      //not a file of a house
+        }
+        return ids;
+    }
+
+    private static Spilled read(File f, int houseID) throws IOException {
+        try (DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if(in.readInt()!=MAGIC || in.readInt()!=houseID) throw new IOException("not the spill file of house "+houseID);
+
+            String address= in.readBoolean()? in.readUTF() : null;
+            int port=in.readInt();
+            int count=in.readInt();
+            if(count<0) throw new IOException("corrupted spill file of house "+houseID);
+
+            long[] timestamps=new long[count];
+            double[] measures=new double[count];
+            for(int i=0;i<count;i++){
+                timestamps[i]=in.readLong();
+                measures[i]=in.readDouble();
+            }
+            return new Spilled(houseID, address, port, timestamps, measures);
+        }
+    }
+
+    public boolean delete(int houseID){
+        return file(houseID).delete();
+    }
+
+    private File file(int houseID){
+        return new File(dir, PREFIX+houseID+SUFFIX);
+    }
+
+    private File taken(int houseID){
+        return new File(dir, PREFIX+houseID+SUFFIX+TAKEN+Thread.currentThread().getId());
+    }
+}
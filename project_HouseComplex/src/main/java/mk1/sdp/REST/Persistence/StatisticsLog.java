@@ -0,0 +1,434 @@
+package mk1.sdp.REST.Persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import static mk1.sdp.misc.Common.*;
+
+/**
+ * append-only write-ahead log of the statistics received by the REST server.
+ * <p>
+ * the log is a sequence of segment files made of fixed-size binary records (type, houseID, timestamp, measure).
+ * the active segment is a preallocated memory mapped file: appending a record reserves its slot with an atomic add on the
+ * position of the segment and writes it with a few absolute puts into the mapping, no lock is taken.
+ * a daemon flushes the dirty pages of the segment every few milliseconds (group commit), so the writers never wait for the disk;
+ * the same daemon maps the next segment in advance and closes the full ones, the writer that fills a segment only switches to the next.
+ * <p>
+ * full segments are closed and a new one is started; when there are too many closed segments they are compacted
+ * into a single one keeping only the last measures of every series that the server would retain in memory anyway,
+ * and none of the houses it no longer knows (see keepHouses).
+ * <p>
+ * a slot reserved by a writer that crashed before writing it stays EMPTY: the replay skips it and goes on
+ * up to the last written record of the segment
+ */
+public class StatisticsLog {
+    static final int RECORD_SIZE = 24;      //int type, int houseID, long timestamp, double measure
+
+    private static final int EMPTY  = 0;    //never written: past the end of the records of a segment, or a hole left by a crash
+    private static final int LOCAL  = 1;
+    private static final int GLOBAL = 2;
+    private static final int HEADER = 3;    //first record of every segment: timestamp=number of the first segment it covers
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private static final int SEGMENT_RECORDS = Integer.getInteger("sdp.wal.segmentRecords", 1<<18);    //records per segment (6 MB)
+    private static final int MAX_SEGMENTS = Integer.getInteger("sdp.wal.maxSegments", 8);              //closed segments before a compaction
+    private static final long FLUSH_MS = Long.getLong("sdp.wal.flushMs", 10);                          //group commit interval
+
+    public interface Replayer{
+        void replayLocal(int houseID, long timestamp, double measure);
+        void replayGlobal(long timestamp, double measure);
+    }
+
+    private final File dir;
+    private final int retention;
+    private final Timer flusher;
+    private final ExecutorService segments;     //maps the next segment and closes the full ones, off the request threads
+
+    private final List<Long> closedSegments;    //sorted numbers of the full segments, guarded by itself: the segments thread never waits for a roll over holding this
+    private boolean compacting;                 //guarded by closedSegments
+
+    private volatile IntPredicate houses=id -> true;    //the houses whose records the compaction keeps
+
+    private volatile Segment current;
+    private CompletableFuture<Segment> next;    //the segment after the current one, being mapped. guarded by this
+    private volatile boolean closed;
+
+    /**
+     * @param dir = directory of the segments, created if missing
+     * @param retention = max number of measures per series kept by the compaction
+     */
+    public StatisticsLog(File dir, int retention) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("unable to create the directory "+dir);
+
+        this.dir=dir;
+        this.retention=retention;
+        this.closedSegments=new ArrayList<>(liveSegments().keySet());
+
+        long first=closedSegments.isEmpty()? 0 : closedSegments.get(closedSegments.size()-1)+1;    //a restart always begins a new segment
+        current=new Segment(first);
+
+        segments=Executors.newSingleThreadExecutor(r -> {
+            Thread t=new Thread(r, "daemonLogSegments");
+            t.setDaemon(true);
+            return t;
+        });
+        next=prepare(first+1);
+
+        flusher=new Timer("daemonLogFlusher", true);
+        flusher.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_MS, FLUSH_MS);
+    }
+
+    /**
+     * from the next compaction, the local records of the houses not accepted by the predicate are dropped
+     */
+    public void keepHouses(IntPredicate houses){
+        this.houses=houses;
+    }
+
+    //region APPEND
+    public void appendLocal(int houseID, long timestamp, double measure){
+        append(LOCAL, houseID, timestamp, measure);
+    }
+
+    public void appendGlobal(long timestamp, double measure){
+        append(GLOBAL, 0, timestamp, measure);
+    }
+
+    private void append(int type, int houseID, long timestamp, double measure){
+        while(!closed){
+            Segment s=current;
+            int pos=s.position.getAndAdd(RECORD_SIZE);
+
+            if(pos+RECORD_SIZE<=s.buffer.capacity()){
+                writeRecord(s.buffer, pos, type, houseID, timestamp, measure);
+                s.written.incrementAndGet();
+                s.dirty=true;
+                return;
+            }
+            if(!rollOver(s)) return;        //full: the first writer past the end switches to the next segment, the others retry there
+        }
+    }
+
+    /**
+     * group commit: a single force covers every record appended since the previous one
+     */
+    private void flush(){
+        Segment s=current;
+        if(!s.dirty) return;
+
+        s.dirty=false;
+        s.buffer.force();
+    }
+
+    public void close(){
+        synchronized (this){
+            if(closed) return;
+            closed=true;        //no roll over from now on: current is the last segment
+        }
+
+        flusher.cancel();
+        segments.shutdown();        //the full segments still being closed are closed
+        try {
+            segments.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        current.close();
+        next.thenAccept(Segment::discard);      //mapped in advance and never used
+    }
+    //endregion
+
+    //region SEGMENTS
+    /**
+     * a segment file mapped in memory, the records are written at the positions reserved on it
+     */
+    private final class Segment {
+        final long number;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicInteger position=new AtomicInteger(RECORD_SIZE);    //next slot to reserve, past the capacity when full
+        final AtomicInteger written=new AtomicInteger();                //records completed in the reserved slots
+        volatile boolean dirty;
+
+        Segment(long number) throws IOException {
+            this.number=number;
+            channel=new RandomAccessFile(segmentFile(number), "rw").getChannel();
+            buffer=channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)(SEGMENT_RECORDS+1)*RECORD_SIZE);
+            writeRecord(buffer, 0, HEADER, 0, number, 0);
+        }
+
+        /**
+         * takes the free slots, so that no more records are appended, and waits for the writers of the reserved ones
+         */
+        void seal(){
+            int end=Math.min(position.getAndSet(buffer.capacity()), buffer.capacity());
+            int reserved=(end-RECORD_SIZE)/RECORD_SIZE;
+            while(written.get()<reserved) Thread.yield();      //a reserved record is a few puts away
+        }
+
+        void close(){
+            seal();
+            buffer.force();
+            try {
+                channel.close();        //the mapping stays valid until it is collected
+            } catch (IOException e) {
+                printErr("while closing the log segment "+number+": "+e.getMessage());
+            }
+        }
+
+        void discard(){
+            try {
+                channel.close();
+                Files.deleteIfExists(segmentFile(number).toPath());
+            } catch (IOException e) {
+                printErr("while deleting the unused log segment "+number+": "+e.getMessage());
+            }
+        }
+    }
+
+    private CompletableFuture<Segment> prepare(long number){
+        CompletableFuture<Segment> f=new CompletableFuture<>();
+        segments.execute(() -> {
+            try {
+                f.complete(new Segment(number));
+            } catch (IOException e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * switches from the full segment to the one mapped in advance, the full one is closed in the background
+     * @return false if there is no segment to switch to and the record is dropped
+     */
+    private synchronized boolean rollOver(Segment full){
+        if(closed) return false;
+        if(current!=full) return true;      //another writer already switched
+
+        Segment s;
+        try {
+            s=next.join();      //normally mapped long before the segment is full
+        } catch (CompletionException e) {
+            printErr("unable to start a new log segment, the statistic is not persisted: "+e.getCause().getMessage());
+            next=prepare(full.number+1);
+            return false;
+        }
+
+        current=s;
+        next=prepare(s.number+1);
+        segments.execute(() -> retire(full));
+        return true;
+    }
+
+    private void retire(Segment full){      //on the segments thread
+        full.close();
+
+        synchronized (closedSegments){
+            closedSegments.add(full.number);
+
+            if(closedSegments.size()>MAX_SEGMENTS && !compacting){
+                compacting=true;
+                List<Long> toCompact=new ArrayList<>(closedSegments);
+                Thread t=new Thread(() -> compact(toCompact), "logCompaction");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    private File segmentFile(long number){
+        return new File(dir, String.format("%s%016d%s", PREFIX, number, SUFFIX));
+    }
+
+    /**
+     * @return the segments to be read in order, without the ones already folded into a later compacted segment.
+     * the leftovers of an interrupted compaction are deleted
+     */
+    private TreeMap<Long,File> liveSegments() throws IOException {
+        TreeMap<Long,File> all=new TreeMap<>();
+        File[] files=dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+
+        if(files!=null){
+            for(File f:files){
+                try{
+                    all.put(Long.parseLong(f.getName().substring(PREFIX.length(), f.getName().length()-SUFFIX.length())), f);
+                }catch (NumberFormatException e){
+                    printErr("ignoring unknown file in the statistics log: "+f.getName());
+                }
+            }
+        }
+
+        TreeMap<Long,File> live=new TreeMap<>();
+        long coveredFrom=Long.MAX_VALUE;
+        for(Map.Entry<Long,File> e:all.descendingMap().entrySet()){
+            if(e.getKey()>=coveredFrom){
+                Files.deleteIfExists(e.getValue().toPath());
+                continue;
+            }
+            live.put(e.getKey(), e.getValue());
+            coveredFrom=Math.min(coveredFrom, firstCovered(e.getValue(), e.getKey()));
+        }
+        return live;
+    }
+
+    private long firstCovered(File f, long number) throws IOException {
+        try(FileChannel ch=new RandomAccessFile(f, "r").getChannel()){
+            if(ch.size()<RECORD_SIZE) return number;
+
+            ByteBuffer header=ByteBuffer.allocate(RECORD_SIZE);
+            ch.read(header, 0);
+            return header.getInt(0)==HEADER? header.getLong(8) : number;
+        }
+    }
+    //endregion
+
+    //region REPLAY
+    /**
+     * reads every record in the log, in the order they were appended.
+     * must be called before the first append
+     */
+    public void replay(Replayer target) throws IOException {
+        final long[] count={0};
+
+        for(File f:liveSegments().values()){
+            forEachRecord(f, (type, houseID, timestamp, measure) -> {
+                if(type==LOCAL)
+                    target.replayLocal(houseID, timestamp, measure);
+                else
+                    target.replayGlobal(timestamp, measure);
+                count[0]++;
+            });
+        }
+        printHigh("server", "replayed "+count[0]+" statistics from "+dir);
+    }
+    //endregion
+
+    //region COMPACTION
+    /**
+     * folds the given closed segments into a single one that keeps, for every series, only the last "retention" records.
+     * the compacted file replaces the last segment, its header tells that the previous ones are covered and can be deleted
+     */
+    private void compact(List<Long> numbers){
+        long last=numbers.get(numbers.size()-1);
+        File tmp=new File(dir, "compaction"+SUFFIX+".tmp");
+
+        try{
+            IntPredicate known=houses;
+            Map<Long,Integer> counts=new HashMap<>();    //series key -> number of records
+            for(long n:numbers){
+                forEachRecord(segmentFile(n), (type, houseID, timestamp, measure) -> counts.merge(seriesKey(type, houseID), 1, Integer::sum));
+            }
+            counts.keySet().removeIf(key -> (int)(key>>>32)==LOCAL && !known.test((int)(long)key));     //a house gone for good
+
+            Map<Long,Integer> toSkip=new HashMap<>();
+            counts.forEach((key, c) -> toSkip.put(key, Math.max(0, c-retention)));
+
+            try(FileChannel out=new RandomAccessFile(tmp, "rw").getChannel()){
+                out.truncate(0);
+                ByteBuffer buf=ByteBuffer.allocate(RECORD_SIZE*1024);
+                writeRecord(buf, 0, HEADER, 0, numbers.get(0), 0);
+                buf.position(RECORD_SIZE);
+
+                for(long n:numbers){
+                    forEachRecord(segmentFile(n), (type, houseID, timestamp, measure) -> {
+                        long key=seriesKey(type, houseID);
+                        Integer skip=toSkip.get(key);
+                        if(skip==null) return;
+                        if(skip>0){
+                            toSkip.put(key, skip-1);
+                            return;
+                        }
+                        if(!buf.hasRemaining()){
+                            buf.flip();
+                            while(buf.hasRemaining()) out.write(buf);
+                            buf.clear();
+                        }
+                        writeRecord(buf, buf.position(), type, houseID, timestamp, measure);
+                        buf.position(buf.position()+RECORD_SIZE);
+                    });
+                }
+                buf.flip();
+                while(buf.hasRemaining()) out.write(buf);
+                out.force(true);
+            }
+
+            Files.move(tmp.toPath(), segmentFile(last).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for(long n:numbers){
+                if(n!=last) Files.deleteIfExists(segmentFile(n).toPath());
+            }
+
+            synchronized (closedSegments){
+                closedSegments.removeAll(numbers);
+                closedSegments.add(0, last);
+            }
+            printHigh("server", "compacted "+numbers.size()+" log segments");
+
+        }catch (IOException e){
+            printErr("while compacting the statistics log: "+e.getMessage());
+        }finally {
+            synchronized (closedSegments){
+                compacting=false;
+            }
+        }
+    }
+
+    private interface RecordConsumer{
+        void accept(int type, int houseID, long timestamp, double measure) throws IOException;
+    }
+
+    private static void forEachRecord(File f, RecordConsumer consumer) throws IOException {
+        try(FileChannel ch=new RandomAccessFile(f, "r").getChannel()){
+            MappedByteBuffer buf=ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            int end=buf.capacity()/RECORD_SIZE*RECORD_SIZE;      //past the last written record: the preallocated tail is skipped
+            while(end>=RECORD_SIZE && buf.getInt(end-RECORD_SIZE)==EMPTY) end-=RECORD_SIZE;
+
+            for(int pos=0;pos<end;pos+=RECORD_SIZE){
+                int type=buf.getInt(pos);
+                if(type==LOCAL || type==GLOBAL)       //EMPTY: reserved and never written, the records after it are still valid
+                    consumer.accept(type, buf.getInt(pos+4), buf.getLong(pos+8), buf.getDouble(pos+16));
+            }
+        }
+    }
+
+    private static long seriesKey(int type, int houseID){
+        return ((long)type<<32) | (houseID & 0xFFFFFFFFL);
+    }
+    //endregion
+
+    private static void writeRecord(ByteBuffer buf, int pos, int type, int houseID, long timestamp, double measure){
+        buf.putInt(pos+4, houseID);
+        buf.putLong(pos+8, timestamp);
+        buf.putDouble(pos+16, measure);
+        buf.putInt(pos, type);      //type written last: a record is valid only once it is complete
+    }
+}
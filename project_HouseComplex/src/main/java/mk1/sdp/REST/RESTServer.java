@@ -1,12 +1,22 @@
 package mk1.sdp.REST;
 
+import mk1.sdp.REST.Ingest.IngestPipeline;
+import mk1.sdp.REST.Metrics.TimingFilter;
+import mk1.sdp.REST.Persistence.HouseSpill;
+import mk1.sdp.REST.Persistence.StatisticsLog;
+import mk1.sdp.REST.Resources.Complex;
 import mk1.sdp.REST.Services.ComplexService;
+import mk1.sdp.REST.Services.MetricsService;
 import mk1.sdp.REST.Services.PushNotificationService;
+import mk1.sdp.REST.Services.StreamService;
+import mk1.sdp.misc.ProtobufProvider;
 
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 
@@ -15,9 +25,17 @@ public class RESTServer {
 
     public static final String HOST = "localhost";
     public static final int PORT = 9421;
+    public static final String LOG_DIR = System.getProperty("sdp.wal.dir", "statLog");
+    public static final String SPILL_DIR = System.getProperty("sdp.suspended.dir", "suspended");
+    private static final int MAX_PENDING_BYTES = Integer.getInteger("sdp.http.maxPendingBytes", 1<<20);
 
 
     public static void main(String[] args)  {
+        StatisticsLog log = openStatisticsLog(new File(LOG_DIR));
+        openHouseSpill(new File(SPILL_DIR));
+        Complex.getInstance().startSweeper();
+        IngestPipeline ingest = IngestPipeline.start(Complex.getInstance());     //null unless -Dsdp.ingest.async=true
+
         HttpServer server = createServerREST("http://"+HOST+":"+PORT+"/");
         try {
             server.start();
@@ -40,13 +58,41 @@ public class RESTServer {
 
         System.out.println("Stopping server");
         server.shutdown();
+        if(ingest!=null) ingest.stop();     //what is queued is stored before the log is closed
+        if(log!=null) log.close();
         System.out.println("Server stopped");
     }
 
+    private static StatisticsLog openStatisticsLog(File dir){     //restores the statistics received before the last shutdown
+        StatisticsLog log=null;
+        try {
+            log = new StatisticsLog(dir, Complex.RETENTION);
+            log.replay(Complex.getInstance());
+            Complex.getInstance().attachLog(log);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("unable to open the statistics log, the statistics will not be persisted...\n".toUpperCase()+e.getMessage());
+            if(log!=null) log.close();
+            log=null;
+        }
+        return log;
+    }
+
+    private static void openHouseSpill(File dir){      //where the suspended houses go when evicted from memory
+        try {
+            Complex.getInstance().attachSpill(new HouseSpill(dir));
+        } catch (IOException e) {
+            System.err.println("unable to open the directory of the suspended houses, evicted ones will be dropped...\n".toUpperCase()+e.getMessage());
+        }
+    }
+
     private static HttpServer createServerREST(String address){
         HttpServer server=null;
-        server =GrizzlyHttpServerFactory.createHttpServer(URI.create(address),new ResourceConfig(ComplexService.class, PushNotificationService.class));
+        server =GrizzlyHttpServerFactory.createHttpServer(URI.create(address),new ResourceConfig(ComplexService.class, PushNotificationService.class, StreamService.class, MetricsService.class, ProtobufProvider.class, TimingFilter.class), false);
 
+        for(NetworkListener l:server.getListeners()){     //a write to a client that does not read blocks instead of queueing without limit in memory
+            l.getTransport().getAsyncQueueIO().getWriter().setMaxPendingBytesPerConnection(MAX_PENDING_BYTES);
+        }
         return server;
     }
 }
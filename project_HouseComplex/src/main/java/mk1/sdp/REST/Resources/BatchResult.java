@@ -0,0 +1,24 @@
+package mk1.sdp.REST.Resources;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * outcome of a batch upload, part by part: every house and the global statistics are stored on their own,
+ * so a refused part does not undo the others
+ */
+@XmlRootElement
+public class BatchResult {
+    public List<Integer> storedHouses=new ArrayList<>();     //every statistic of these houses was stored
+    public List<Integer> refusedHouses=new ArrayList<>();    //missing, or some of their statistics were too late
+    public int localRefused;                                 //local statistics not stored
+    public int globalStored;
+    public int globalRefused;                                //too late
+
+    public BatchResult(){}     //needed for marshalling
+
+    public boolean allStored(){
+        return refusedHouses.isEmpty() && globalRefused==0;
+    }
+}
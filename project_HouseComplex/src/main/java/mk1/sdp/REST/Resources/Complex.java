@@ -4,153 +4,608 @@ import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import mk1.sdp.REST.Metrics.LatencyHistogram;
+import mk1.sdp.REST.Metrics.Metrics;
+import mk1.sdp.REST.Persistence.HouseSpill;
+import mk1.sdp.REST.Persistence.StatisticsLog;
 import mk1.sdp.misc.Pair;
 
+import static mk1.sdp.misc.Common.printErr;
 
+
+/**
+ * houses and statistics of the complex.
+ * there is no lock shared by the whole complex: the houses are kept in a concurrent map,
+ * every house synchronizes on its own series and the global statistics have a series of their own
+ */
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.FIELD)
-public class Complex {
+public class Complex implements StatisticsLog.Replayer {
+    public static final int RETENTION = StatSeries.RETENTION;
+    private static final LatencyHistogram HOUSE_WAIT=Metrics.histogram("sdp_lock_wait_seconds", "time waited for the lock of a series", "lock", "house");
+    private static final LatencyHistogram HOUSE_HOLD=Metrics.histogram("sdp_lock_hold_seconds", "time a series is locked to store statistics", "lock", "house");
+    private static final LatencyHistogram GLOBAL_WAIT=Metrics.histogram("sdp_lock_wait_seconds", "time waited for the lock of a series", "lock", "global");
+    private static final long SUSPENDED_TTL_MS = Long.getLong("sdp.suspended.ttlMs", 3_600_000);    //kept in memory for an hour after leaving
+    private static final int MAX_SUSPENDED = Integer.getInteger("sdp.suspended.max", 1000);         //the oldest beyond this are evicted
+    private static final long SWEEP_MS = Long.getLong("sdp.suspended.sweepMs", 10_000);
+    private static final LatencyHistogram GLOBAL_HOLD=Metrics.histogram("sdp_lock_hold_seconds", "time a series is locked to store statistics", "lock", "global");
 
     @XmlElement(name = "HouseList")
-    public final Hashtable<Integer,Home> complex;
+    public final ConcurrentHashMap<Integer,Home> complex;
+    @XmlTransient                                   //served by /complex/global/stat, and streamed in the Global_Stat_List of GET /complex
+    private final StatSeries complexStat;
     @XmlElement(name = "Global_Stat_List")
-    private final  List<Pair<Long,Double>> complexStat;
-    private static Complex instance;
-    private final Hashtable<Integer,Home> suspendedHouse;
+    private List<Pair<Long,Double>> globalStatList;  //only filled in a Complex read from GET /complex, the server never builds it
+    private static final Complex instance=new Complex();
+    private final ConcurrentHashMap<Integer,Home> suspendedHouse;
+    @XmlTransient
+    private volatile StatisticsLog log;             //null if the statistics are not persisted
+    @XmlTransient
+    private volatile Membership membership;         //replaced, never modified, on every insertion or removal
+    @XmlTransient
+    private final Object membershipLock=new Object();
+    @XmlTransient
+    private final AtomicLong clock=new AtomicLong();  //versions of membership and series, shared so a version is never reused
+    @XmlTransient
+    private volatile long globalVersion;
+    @XmlTransient
+    private final CopyOnWriteArrayList<StatListener> listeners=new CopyOnWriteArrayList<>();
+    @XmlTransient
+    private final TopIndex top=new TopIndex();
+    @XmlTransient
+    private volatile HouseSpill spill;              //null if the evicted suspended houses are dropped
+    @XmlTransient
+    private final Set<Integer> spilledIds=ConcurrentHashMap.newKeySet();     //houses whose statistics are only in their spill file
+    @XmlTransient
+    private final AtomicLong spilled=new AtomicLong();
+    @XmlTransient
+    private final AtomicLong restored=new AtomicLong();
+
+    /**
+     * told of every statistic accepted from the network, in the order of its series and with its index in it.
+     * called while the series is locked: it must only hand the statistic over
+     */
+    public interface StatListener {
+        void onLocal(int houseID, long index, long timestamp, double measure);
+
+        void onGlobal(long index, long timestamp, double measure);
+
+        void onHouseDeleted(int houseID);       //called after the house left the complex, holding no lock
+    }
 
     public static Complex getInstance(){
-        if(instance==null)
-            instance=new Complex();
         return instance;
     }
 
-    private Complex(){
-        complex= new Hashtable<>();
-        suspendedHouse= new Hashtable<>();
+    Complex(){                          //package-private: the benchmarks use complexes of their own
+        complex= new ConcurrentHashMap<>();
+        suspendedHouse= new ConcurrentHashMap<>();
 
-        complexStat= new ArrayList<>();
+        complexStat= new StatSeries();
+        membership= Membership.EMPTY;
     }
-    //region REST REQUEST
 
-    //POST
-    public boolean addHouse (Home h) {                      //synced to avoid double insertion attempt
+    public void addStatListener(StatListener l){
+        listeners.add(l);
+    }
 
-        synchronized (complex) {
+    /**
+     * every statistic accepted from now on is also appended to the log.
+     * the log keeps the statistics of the houses in the complex, suspended or evicted to the disk, the others are gone for good
+     */
+    public void attachLog(StatisticsLog log){
+        log.keepHouses(id -> complex.containsKey(id) || suspendedHouse.containsKey(id) || spilledIds.contains(id));
+        this.log=log;
+    }
 
-            if (complex.containsKey(h.HomeID)) {
-                return false;
+    /**
+     * the suspended houses evicted from memory are written there, and read back when they register again.
+     * called after the replay of the log: a file of a house the log brought back holds older statistics, it is deleted
+     */
+    public void attachSpill(HouseSpill spill){
+        for(int id:spill.houses()){
+            if(suspendedHouse.containsKey(id)) spill.delete(id);
+            else spilledIds.add(id);
+        }
+        this.spill=spill;
+    }
+    //region REST REQUEST
+
+    //POST
+    public boolean addHouse (Home h) {                      //atomic on the ID to avoid double insertion attempt
+        final boolean[] added={false};
+        final boolean[] onDisk={false};
+        Home fromFile=null;                                 //read from the disk outside of the map, for the next attempt
+
+        while(true){
+            final Home fromDisk=fromFile;
+            onDisk[0]=false;
+            complex.computeIfAbsent(h.HomeID, id -> {
+                Home suspended=suspendedHouse.remove(id);       //a returning house gets its statistics back
+                if(suspended==null && spilledIds.contains(id)){ //or from the disk, if it was evicted
+                    if(fromDisk==null){
+                        onDisk[0]=true;
+                        return null;
+                    }
+                    spilledIds.remove(id);
+                    suspended=fromDisk;
+                }
+                added[0]=true;
+                if(suspended==null){
+                    h.version=clock.incrementAndGet();          //a new house never takes the version of an old one with the same ID
+                    return h;
+                }
+
+                suspended.address=h.address;                   //but it may be listening somewhere else
+                suspended.listeningPort=h.listeningPort;
+                return suspended;
+            });
+            if(fromDisk!=null){
+                if(complex.get(h.HomeID)!=fromDisk) giveBack(fromDisk);
+                spill.release(h.HomeID);                     //the statistics are in memory again
+                break;
             }
+            if(!onDisk[0]) break;
 
-            if (suspendedHouse.containsKey(h.HomeID)) {
-                complex.put(h.HomeID, suspendedHouse.remove(h.HomeID));
+            fromFile=restore(h.HomeID);
+            if(fromFile==null) Thread.yield();              //another registration is restoring it: the next attempt finds it in memory
+        }
+        if(added[0]){
+            publishMembership();
+            rank(complex.get(h.HomeID));        //a returning house is ranked with the statistics it had
+        }
+        return added[0];
+    }
 
-            } else {
-                complex.put(h.HomeID, h);
+    //DELETE
+    public boolean deleteHouse(int id){                    //atomic on the ID, a concurrent insertion of the same house waits for the suspension
+        final Home[] removed={null};
+
+        complex.computeIfPresent(id, (key, h) -> {
+            removed[0]=h;
+            h.suspendedAt=System.currentTimeMillis();
+            suspendedHouse.put(key, h);
+            return null;
+        });
+        if(removed[0]!=null){
+            publishMembership();
+            synchronized (removed[0]){      //after a statistic being stored right now, which still sees the house in the complex
+                top.remove(id);
             }
-            return complex.containsKey(h.HomeID);               //check if the insertion has been completed
+            for(StatListener l:listeners) l.onHouseDeleted(id);
         }
+        return !complex.containsKey(id);
     }
 
-    //DELETE
-    public boolean deleteHouse(int id){                    //synced to avoid concurrent access while deleting a house
-        synchronized (complex) {
-            suspendedHouse.put(id, complex.remove(id));
+    /**
+     * the houses currently in the complex, without statistics. O(1), never blocks
+     */
+    public Membership getMembership(){
+        return membership;
+    }
 
-            return !complex.containsKey(id);
+    private void rank(Home h){
+        if(h==null) return;
+
+        synchronized (h){
+            if(complex.get(h.HomeID)==h) top.update(h);
+        }
+    }
+
+    private void publishMembership(){       //the snapshot is rebuilt from the map after the change, so the last one published sees every change before it
+        synchronized (membershipLock){
+            membership=Membership.of(clock.incrementAndGet(), complex.values());
         }
     }
 
     //PUT
     public boolean addLocalStat(int id, Pair<Long,Double> measure){
-        boolean b;
-        synchronized (complex){
-           b= complex.get(id).AddMeasure(measure);
+        Home h=complex.get(id);
+        if(h==null) return false;
+
+        long waiting=System.nanoTime();
+        synchronized (h){                                   //synced only on the house, to log its statistics in the same order they are stored
+            long held=System.nanoTime();
+            HOUSE_WAIT.record(held-waiting);
+            try {
+                boolean b=h.AddMeasure(measure);
+                if(b) h.version=clock.incrementAndGet();        //after the measure: a reader never gets an old body with the new version
+                if(b && log!=null) log.appendLocal(id, measure.left, measure.right);
+                if(b) notifyLocal(h, Collections.singletonList(measure));
+                if(b && complex.get(id)==h) top.update(h);
+                return b;
+            } finally {
+                HOUSE_HOLD.recordSince(held);
+            }
         }
-        return b;
     }
 
     //PUT
     public boolean addGlobalStat(Pair<Long,Double> measure){
-         synchronized (complex) {
-             complexStat.add(measure);
-             return complexStat.contains(measure);
-         }
+        long waiting=System.nanoTime();
+        synchronized (complexStat){
+            long held=System.nanoTime();
+            GLOBAL_WAIT.record(held-waiting);
+            try {
+                boolean b=complexStat.add(measure.left, measure.right);
+                if(b) globalVersion=clock.incrementAndGet();
+                if(b && log!=null) log.appendGlobal(measure.left, measure.right);
+                if(b) notifyGlobal(Collections.singletonList(measure));
+                return b;
+            } finally {
+                GLOBAL_HOLD.recordSince(held);
+            }
+        }
+    }
+    //PUT
+    public int addLocalStats(int id, List<Pair<Long,Double>> measures){      //the whole batch of the house is stored at once. how many were stored (the late ones are not), -1 if there is no such house
+        Home h=complex.get(id);
+        if(h==null) return -1;
+
+        long waiting=System.nanoTime();
+        synchronized (h){
+            long held=System.nanoTime();
+            HOUSE_WAIT.record(held-waiting);
+            try {
+                List<Pair<Long,Double>> added=h.AddMeasures(measures);
+                if(added.isEmpty()) return 0;
+
+                h.version=clock.incrementAndGet();
+                if(log!=null){
+                    for(Pair<Long,Double> m:added) log.appendLocal(id, m.left, m.right);
+                }
+                notifyLocal(h, added);
+                if(complex.get(id)==h) top.update(h);
+                return added.size();
+            } finally {
+                HOUSE_HOLD.recordSince(held);
+            }
+        }
+    }
+
+    //PUT
+    public int addGlobalStats(List<Pair<Long,Double>> measures){        //how many were stored, the late ones are not
+        long waiting=System.nanoTime();
+        synchronized (complexStat){
+            long held=System.nanoTime();
+            GLOBAL_WAIT.record(held-waiting);
+            try {
+                List<Pair<Long,Double>> added=complexStat.addAll(measures);
+                if(added.isEmpty()) return 0;
+
+                globalVersion=clock.incrementAndGet();
+                if(log!=null){
+                    for(Pair<Long,Double> m:added) log.appendGlobal(m.left, m.right);
+                }
+                notifyGlobal(added);
+                return added.size();
+            } finally {
+                GLOBAL_HOLD.recordSince(held);
+            }
+        }
     }
+
     //GET
-    public Home getHouse(int id){
-        if(!complex.containsKey(id)) return null;
+    public long getGlobalVersion(){                 //changes every time a global statistic is added
+        return globalVersion;
+    }
 
+    //GET
+    public long getLocalVersion(int id){            //changes every time a statistic of the house is added, -1 if there is no such house
+        Home h=complex.get(id);
+        return h==null? -1 : h.version;
+    }
+
+    //GET
+    public MeasureWindow getLocalStatSince(int ID, long index){     //from the given index of the series of the house to the last one
+        Home h=complex.get(ID);
+        if (h==null) return null;
+
+        return h.since(index);
+    }
+
+    //GET
+    public MeasureWindow getGlobalStatSince(long index){
+        return complexStat.since(index);
+    }
+
+    //GET
+    public Home getHouse(int id){
         return complex.get(id);
     }
 
     //GET
-    public List<Pair<Long,Double>> getLastLocalStat(int ID, int n){  //synced to avoid deletion or insertion attempt while retreaving the list of statistics
-        synchronized (complex) {
-            if (!complex.containsKey(ID)) return null;
+    public MeasureWindow getLastLocalStat(int ID, int n){
+        Home h=complex.get(ID);
+        if (h==null) return null;
 
-            return complex.get(ID).getLastN(n);
-        }
+        return h.getLastN(n);
+    }
 
+    //GET
+    public MeasureWindow getLocalStatRange(int ID, long from, long to){
+        Home h=complex.get(ID);
+        if (h==null) return null;
+
+        return h.getRange(from, to);
+    }
+
+    //GET
+    public List<RollupBucket> getLastLocalBuckets(int ID, Resolution resolution, int n){
+        Home h=complex.get(ID);
+        if (h==null) return null;
+
+        return h.getLastBuckets(resolution, n);
+    }
+
+    //GET
+    public List<RollupBucket> getLocalBucketRange(int ID, Resolution resolution, long from, long to){
+        Home h=complex.get(ID);
+        if (h==null) return null;
+
+        return h.getBucketRange(resolution, from, to);
+    }
+
+    //GET
+    public Pair<Double, Double> getLocalMeanDev(int ID, long from, long to){
+        Home h=complex.get(ID);
+        if(h==null) return null;
+
+        return h.getMeanDeviation(from, to);
     }
 
     //GET
     public Pair<Double, Double> getLocalMeanDev(int ID, int n){
+        Home h=complex.get(ID);
+        if(h==null) return null;
 
-        List<Pair<Long,Double>> measurement;
-        synchronized (complex){                                         //synced to take the most updated copy of the stats of the house (also synced inside getLastN) without occupying the OBJ for too long
-            if(!complex.containsKey(ID)) return null;
+        return h.getMeanDeviation(n);
 
-            measurement=complex.get(ID).getLastN(n);
-        }
+    }
 
-        return calculateMeanDeviation(measurement);
+    //GET
+    public List<Pair<Integer,Double>> getTop(int k, int window){        //left=HomeID, right=mean of its last window measures. null if the window is not indexed
+        return top.top(k, window);
+    }
+
+    //GET
+    public static int[] getTopWindows(){
+        return TopIndex.WINDOWS.clone();
+    }
 
+    public static int getReorderWindow(){       //a statistic is still stored if at most this many of the series are newer than it
+        return StatSeries.REORDER;
     }
 
     //GET
-    public  ArrayList<Pair<Long,Double>> getLastGlobalStat(int n){
-        List<Pair<Long,Double>> copy;
-        synchronized (complexStat){                                     //synced to take the most updated copy of the stats of the complex without occupying the OBJ for too long
-            copy= new ArrayList<Pair<Long,Double>>(complexStat);
-        }
+    public Quantiles getLocalQuantiles(int ID, int n){
+        Home h=complex.get(ID);
+        if(h==null) return null;
 
-        return new ArrayList<>(copy.subList(copy.size() - Math.min(copy.size(), n), copy.size()));
+        return Quantiles.of(h.getSketch(n));
+    }
+
+    //GET
+    public Quantiles getLocalQuantiles(int ID, long from, long to){
+        Home h=complex.get(ID);
+        if(h==null) return null;
+
+        return Quantiles.of(h.getSketch(from, to));
+    }
+
+    //GET
+    public Quantiles getHousesQuantiles(int n){         //of the measures of every house together: merged sketches, no measure read twice
+        KllSketch all=new KllSketch();
+        for(Home h:complex.values()) all.merge(h.getSketch(n));
+        return Quantiles.of(all);
+    }
+
+    //GET
+    public Quantiles getHousesQuantiles(long from, long to){
+        KllSketch all=new KllSketch();
+        for(Home h:complex.values()) all.merge(h.getSketch(from, to));
+        return Quantiles.of(all);
+    }
+
+    //GET
+    public MeasureWindow getLastGlobalStat(int n){
+        return complexStat.getLastN(n);
+    }
+
+    //GET
+    public MeasureWindow getGlobalStatRange(long from, long to){
+        return complexStat.getRange(from, to);
+    }
+
+    //GET
+    public List<RollupBucket> getLastGlobalBuckets(Resolution resolution, int n){
+        return complexStat.getLastBuckets(resolution, n);
+    }
+
+    //GET
+    public List<RollupBucket> getGlobalBucketRange(Resolution resolution, long from, long to){
+        return complexStat.getBucketRange(resolution, from, to);
+    }
+
+    //GET
+    public Pair<Double, Double> getGlobalMeanDev(long from, long to){
+        return complexStat.getMeanDeviation(from, to);
+    }
+
+    //GET
+    public Quantiles getGlobalQuantiles(int n){
+        return Quantiles.of(complexStat.getSketch(n));
+    }
+
+    //GET
+    public Quantiles getGlobalQuantiles(long from, long to){
+        return Quantiles.of(complexStat.getSketch(from, to));
     }
 
     //GET
     public Pair<Double, Double> getGlobalMeanDev(int n){
 
-        return calculateMeanDeviation(getLastGlobalStat(n));
+        return complexStat.getMeanDeviation(n);
 
     }
 
     //endregion
 
-    private Pair<Double, Double> calculateMeanDeviation(List<Pair<Long,Double>> m){  //Pair: left=mean, right= standardDeviation
-        if(m.size()<=0) return null;    //no need for calculation
+    private void notifyLocal(Home h, List<Pair<Long,Double>> added){      //the index of an event is the order of arrival: a late measure is sent with the last index, not its place
+        if(listeners.isEmpty()) return;
+
+        long index=h.total()-added.size();
+        for(Pair<Long,Double> m:added){
+            for(StatListener l:listeners) l.onLocal(h.HomeID, index, m.left, m.right);
+            index++;
+        }
+    }
+
+    private void notifyGlobal(List<Pair<Long,Double>> added){
+        if(listeners.isEmpty()) return;
+
+        long index=complexStat.total()-added.size();
+        for(Pair<Long,Double> m:added){
+            for(StatListener l:listeners) l.onGlobal(index, m.left, m.right);
+            index++;
+        }
+    }
+
+    //region SUSPENDED HOUSES
+    /**
+     * evicts every 10s (sdp.suspended.sweepMs) the suspended houses gone for longer than the TTL, then the oldest
+     * ones beyond the max count: between two sweeps there may be more than the max
+     */
+    public void startSweeper(){
+        Timer sweeper=new Timer("daemonSuspendedSweeper", true);
+        sweeper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sweepSuspended(System.currentTimeMillis());
+            }
+        }, SWEEP_MS, SWEEP_MS);
+
+        Metrics.gauge("sdp_suspended_houses", "houses gone from the complex whose statistics are in memory", suspendedHouse::size);
+        Metrics.counter("sdp_suspended_spilled_total", "suspended houses evicted to the disk", spilled::get);
+        Metrics.counter("sdp_suspended_restored_total", "evicted houses read back from the disk when registering again", restored::get);
+    }
+
+    void sweepSuspended(long now){
+        List<Home> byAge=new ArrayList<>(suspendedHouse.values());
+        byAge.sort(Comparator.comparingLong(h -> h.suspendedAt));
 
-        double mean=0,deviation=0;
+        int over=byAge.size()-MAX_SUSPENDED;
+        for(Home h:byAge){
+            boolean expired= now-h.suspendedAt>SUSPENDED_TTL_MS;
+            if(!expired && over<=0) break;      //the rest is younger
 
-        //mean
-        for (Pair<Long,Double> measure : m) {
-            mean += measure.right;
+            if(evict(h.HomeID, h)) over--;
         }
-        mean= mean/m.size();
+    }
+
+    private boolean evict(int id, Home expected){       //the file is written before the house leaves the memory: a house registering meanwhile finds one of them
+        if(suspendedHouse.get(id)!=expected) return false;     //suspended again in the meantime
+
+        HouseSpill s=spill;
+        boolean written=false;
+        if(s!=null){
+            try {
+                MeasureWindow all=expected.getLastN(Integer.MAX_VALUE);
+                long[] timestamps=new long[(int) all.remaining()];
+                double[] measures=new double[timestamps.length];
+                int n=all.read(timestamps, measures);
+                s.write(id, expected.address, expected.listeningPort, timestamps, measures, n);
+                spilledIds.add(id);
+                written=true;
+            } catch (IOException e) {
+                printErr("statistics of the suspended house "+id+" lost: "+e.getMessage());
+            }
+        }
+
+        if(!suspendedHouse.remove(id, expected)){      //registered again while writing: the memory won, the file is stale
+            if(written){
+                spilledIds.remove(id);
+                s.delete(id);
+            }
+            return false;
+        }
+        if(written) spilled.incrementAndGet();
+        return true;
+    }
 
-        double temp=0;
+    /**
+     * the evicted house with its statistics, read from the disk. null if another thread is restoring it,
+     * or if its statistics are lost (no longer spilled then, it registers as a new house)
+     */
+    private Home restore(int id){
+        HouseSpill s=spill;
+        if(s==null){
+            spilledIds.remove(id);
+            return null;
+        }
+
+        try {
+            HouseSpill.Spilled f=s.take(id);
+            if(f==null){
+                if(!s.isTaken(id)) spilledIds.remove(id);       //not being restored either: the file is gone
+                return null;
+            }
 
-        //deviation
-        for (Pair<Long,Double> measure : m) {
-            temp+=Math.pow(measure.right -mean, 2);
+            Home h=new Home(id, f.address, f.listeningPort);
+            List<Pair<Long,Double>> measures=new ArrayList<>(f.timestamps.length);
+            for(int i=0;i<f.timestamps.length;i++) measures.add(Pair.of(f.timestamps[i], f.measures[i]));
+            h.AddMeasures(measures);
+            h.version=clock.incrementAndGet();
+
+            restored.incrementAndGet();
+            return h;
+        } catch (IOException e) {
+            printErr("statistics of the suspended house "+id+" not restored, its file is kept as .corrupt: "+e.getMessage());
+            spilledIds.remove(id);
+            return null;
         }
+    }
 
-        deviation=Math.sqrt(temp/m.size());
+    private void giveBack(Home h){      //restored but not stored in the complex: suspended again, in memory
+        h.suspendedAt=System.currentTimeMillis();
+        if(suspendedHouse.putIfAbsent(h.HomeID, h)!=null)
+            printErr("statistics of the suspended house "+h.HomeID+" restored twice, the copy from the disk is dropped");
+        spilledIds.remove(h.HomeID);
+    }
+    //endregion
 
-        return Pair.of(mean, deviation);
+    //region REPLAY
+    @Override
+    public void replayLocal(int houseID, long timestamp, double measure) {     //after a restart the houses have to register again: until then their statistics wait as suspended
+        Home h=complex.get(houseID);
+        if(h==null)
+            h=suspendedHouse.computeIfAbsent(houseID, id -> {
+                Home r=new Home(id, null, 0);
+                r.suspendedAt=System.currentTimeMillis();       //the retention starts with the server
+                return r;
+            });
+
+        h.AddMeasure(Pair.of(timestamp, measure));
+        h.version=clock.incrementAndGet();
     }
 
+    @Override
+    public void replayGlobal(long timestamp, double measure) {
+        complexStat.add(timestamp, measure);
+        globalVersion=clock.incrementAndGet();
+    }
+    //endregion
 }
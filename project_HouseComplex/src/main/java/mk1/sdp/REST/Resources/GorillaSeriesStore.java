@@ -0,0 +1,402 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * measures compressed in chunks as in Facebook's Gorilla: timestamps as delta-of-delta, measures as the XOR with the previous one.
+ * regular sampling and slowly changing measures take a few bits per point instead of 16 bytes.
+ * <p>
+ * only the last chunk accepts new measures, full chunks are sealed (trimmed and never touched again) and the oldest
+ * are dropped once the retention is reached. every chunk keeps count, mean and M2 of its measures (Welford),
+ * so the mean/deviation of an interval decodes at most the two chunks at its ends
+ */
+class GorillaSeriesStore implements SeriesStore {
+    static final int CHUNK_SIZE = Integer.getInteger("sdp.series.chunkSize", 256);    //measures per chunk
+
+    private final int retention;
+    private final ArrayList<Chunk> chunks;    //oldest first, the last one is the head
+    private int size;
+    private long total;
+
+    GorillaSeriesStore(int retention){
+        this.retention=retention;
+        this.chunks=new ArrayList<>();
+    }
+
+    @Override
+    public void add(long timestamp, double measure){
+        Chunk head= chunks.isEmpty()? null : chunks.get(chunks.size()-1);
+
+        if(head==null || head.count==CHUNK_SIZE){
+            if(head!=null) head.seal();
+            chunks.add(new Chunk(total, timestamp, measure));
+        }else{
+            head.append(timestamp, measure);
+        }
+        total++;
+        size++;
+
+        while(chunks.size()>1 && size-chunks.get(0).count>=retention){     //whole chunks are dropped: at least retention measures are kept
+            size-=chunks.remove(0).count;
+        }
+    }
+
+    @Override
+    public void truncate(long end){     //the chunk holding end is decoded and its measures before end are encoded again
+        if(end>=total) return;
+
+        int chunk=chunkOf(end);
+        Chunk c=chunks.get(chunk);
+        int kept=(int)(end-c.firstIndex);
+        long[] timestamps=new long[kept];
+        double[] measures=new double[kept];
+        ChunkReader reader=new ChunkReader(c);
+        for(int i=0;i<kept && reader.next();i++){
+            timestamps[i]=reader.timestamp;
+            measures[i]=reader.measure();
+        }
+
+        while(chunks.size()>chunk){
+            size-=chunks.remove(chunks.size()-1).count;
+        }
+        total=c.firstIndex;
+        for(int i=0;i<kept;i++){
+            add(timestamps[i], measures[i]);
+        }
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public long total(){
+        return total;
+    }
+
+    @Override
+    public long lastTimestamp(){
+        return chunks.get(chunks.size()-1).lastTimestamp;
+    }
+
+    @Override
+    public long firstAtOrAfter(long timestamp){
+        int low=0, high=chunks.size();           //first chunk ending at or after the timestamp
+        while(low<high){
+            int mid=(low+high)>>>1;
+            if(chunks.get(mid).lastTimestamp<timestamp) low=mid+1;
+            else high=mid;
+        }
+        if(low==chunks.size()) return total;
+
+        Chunk c=chunks.get(low);
+        ChunkReader reader=new ChunkReader(c);
+        long index=c.firstIndex;
+        while(reader.next() && reader.timestamp<timestamp){
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public MeasureCursor cursor(long first, long end){
+        return new MeasureCursor() {
+            private int chunk=chunkOf(first);
+            private ChunkReader reader=skipTo(chunk, first);
+            private long next=first;
+
+            @Override
+            public boolean next() {
+                if(next>=end) return false;
+
+                while(!reader.next()){          //the current chunk is over, continue on the next one
+                    reader=new ChunkReader(chunks.get(++chunk));
+                }
+                next++;
+                return true;
+            }
+
+            @Override
+            public long timestamp() {
+                return reader.timestamp;
+            }
+
+            @Override
+            public double measure() {
+                return reader.measure();
+            }
+        };
+    }
+
+    @Override
+    public Pair<Double,Double> meanDeviation(long first, long end){
+        long n=0;
+        double mean=0, m2=0;        //of the measures shifted by the first measure of the first chunk, as the chunks do
+        double reference=Double.NaN;
+
+        for(int i=chunkOf(first);i<chunks.size() && chunks.get(i).firstIndex<end;i++){
+            Chunk c=chunks.get(i);
+            if(Double.isNaN(reference)) reference=c.firstMeasure;
+            long cn;
+            double cMean, cM2;
+
+            if(c.firstIndex>=first && c.firstIndex+c.count<=end){      //whole chunk: its own aggregates
+                cn=c.count;
+                cMean=c.shiftedMean+(c.firstMeasure-reference);
+                cM2=c.m2;
+            }else{                                                      //chunk cut by the interval: decode it
+                cn=0;
+                cMean=0;
+                cM2=0;
+                ChunkReader reader=new ChunkReader(c);
+                for(long index=c.firstIndex;index<end && reader.next();index++){
+                    if(index<first) continue;
+
+                    cn++;
+                    double x=reader.measure()-reference;
+                    double delta=x-cMean;
+                    cMean+=delta/cn;
+                    cM2+=delta*(x-cMean);
+                }
+            }
+            if(cn==0) continue;
+
+            long total=n+cn;                   //parallel combination of two (count, mean, M2)
+            double delta=cMean-mean;
+            mean+=delta*cn/total;
+            m2+=cM2+delta*delta*n*cn/total;
+            n=total;
+        }
+
+        return Pair.of(reference+mean, Math.sqrt(Math.max(0, m2/n)));
+    }
+
+    private int chunkOf(long index){            //chunk containing the measure with the given index
+        int low=0, high=chunks.size()-1;
+        while(low<high){
+            int mid=(low+high+1)>>>1;
+            if(chunks.get(mid).firstIndex<=index) low=mid;
+            else high=mid-1;
+        }
+        return low;
+    }
+
+    private ChunkReader skipTo(int chunk, long index){     //reader positioned before the measure with the given index
+        if(chunks.isEmpty()) return null;       //no measure: the cursor is over an empty interval and never reads
+
+        Chunk c=chunks.get(chunk);
+        ChunkReader reader=new ChunkReader(c);
+        for(long i=c.firstIndex;i<index;i++){
+            reader.next();
+        }
+        return reader;
+    }
+
+    @Override
+    public long encodedBytes(){
+        long bytes=0;
+        for(Chunk c:chunks){
+            bytes+=8L*c.words.length+Chunk.OVERHEAD_BYTES;
+        }
+        return bytes;
+    }
+
+    //region CHUNK
+    private static final class Chunk {
+        static final int OVERHEAD_BYTES = 112;      //header and fields of the chunk and of its words array, besides the encoded bits
+
+        final long firstIndex;
+        final long firstTimestamp;
+        final double firstMeasure;
+        int count;
+        long lastTimestamp;
+
+        long[] words;           //encoded bits, most significant first
+        int bits;
+
+        //encoder state
+        private long previousDelta;
+        private long previousMeasureBits;
+        private int previousLeading=-1;
+        private int previousTrailing;
+
+        //Welford aggregates, on the measures shifted by the first one: a large mean would round away a small deviation
+        double shiftedMean;
+        double m2;
+
+        Chunk(long firstIndex, long timestamp, double measure){
+            this.firstIndex=firstIndex;
+            this.firstTimestamp=timestamp;
+            this.firstMeasure=measure;
+            this.lastTimestamp=timestamp;
+            this.previousMeasureBits=Double.doubleToRawLongBits(measure);
+            this.words=new long[4];
+            this.count=1;
+        }
+
+        void append(long timestamp, double measure){
+            long delta=timestamp-lastTimestamp;
+            encodeDeltaOfDelta(delta-previousDelta);
+            previousDelta=delta;
+            lastTimestamp=timestamp;
+
+            long measureBits=Double.doubleToRawLongBits(measure);
+            encodeXor(measureBits^previousMeasureBits);
+            previousMeasureBits=measureBits;
+
+            count++;
+            double x=measure-firstMeasure;
+            double d=x-shiftedMean;
+            shiftedMean+=d/count;
+            m2+=d*(x-shiftedMean);
+        }
+
+        void seal(){
+            words=Arrays.copyOf(words, (bits+63)>>>6);
+        }
+
+        private void encodeDeltaOfDelta(long dod){
+            if(dod==0){
+                write(0, 1);
+            }else if(dod>=-63 && dod<=64){
+                write(0b10, 2);
+                write(dod+63, 7);
+            }else if(dod>=-255 && dod<=256){
+                write(0b110, 3);
+                write(dod+255, 9);
+            }else if(dod>=-2047 && dod<=2048){
+                write(0b1110, 4);
+                write(dod+2047, 12);
+            }else{
+                write(0b1111, 4);
+                write(dod, 64);
+            }
+        }
+
+        private void encodeXor(long xor){
+            if(xor==0){
+                write(0, 1);
+                return;
+            }
+            write(1, 1);
+
+            int leading=Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing=Long.numberOfTrailingZeros(xor);
+
+            if(previousLeading!=-1 && leading>=previousLeading && trailing>=previousTrailing){    //fits in the previous window
+                write(0, 1);
+                write(xor>>>previousTrailing, 64-previousLeading-previousTrailing);
+            }else{
+                int meaningful=64-leading-trailing;
+                write(1, 1);
+                write(leading, 5);
+                write(meaningful-1, 6);
+                write(xor>>>trailing, meaningful);
+                previousLeading=leading;
+                previousTrailing=trailing;
+            }
+        }
+
+        private void write(long value, int n){
+            if(bits+n>64L*words.length){
+                words=Arrays.copyOf(words, words.length*2);
+            }
+            int word=bits>>>6;
+            int free=64-(bits&63);
+            value&=mask(n);
+
+            if(n<=free){
+                words[word]|=value<<(free-n);
+            }else{
+                int rest=n-free;
+                words[word]|=value>>>rest;
+                words[word+1]|=value<<(64-rest);
+            }
+            bits+=n;
+        }
+    }
+
+    private static long mask(int n){
+        return n==64? -1L : (1L<<n)-1;
+    }
+    //endregion
+
+    //region DECODING
+    /**
+     * streaming decoder of a chunk: next() moves on the following measure
+     */
+    private static final class ChunkReader {
+        private final Chunk chunk;
+        private int read;
+        private int position;
+
+        long timestamp;
+        private long delta;
+        private long measureBits;
+        private int leading;
+        private int trailing;
+
+        ChunkReader(Chunk chunk){
+            this.chunk=chunk;
+        }
+
+        boolean next(){
+            if(read>=chunk.count) return false;
+
+            if(read==0){
+                timestamp=chunk.firstTimestamp;
+                measureBits=Double.doubleToRawLongBits(chunk.firstMeasure);
+            }else{
+                delta+=decodeDeltaOfDelta();
+                timestamp+=delta;
+                measureBits^=decodeXor();
+            }
+            read++;
+            return true;
+        }
+
+        double measure(){
+            return Double.longBitsToDouble(measureBits);
+        }
+
+        private long decodeDeltaOfDelta(){
+            if(read(1)==0) return 0;
+            if(read(1)==0) return read(7)-63;
+            if(read(1)==0) return read(9)-255;
+            if(read(1)==0) return read(12)-2047;
+            return read(64);
+        }
+
+        private long decodeXor(){
+            if(read(1)==0) return 0;
+
+            if(read(1)==1){                                   //new window
+                leading=(int)read(5);
+                int meaningful=(int)read(6)+1;
+                trailing=64-leading-meaningful;
+            }
+            return read(64-leading-trailing)<<trailing;
+        }
+
+        private long read(int n){
+            long[] words=chunk.words;
+            int word=position>>>6;
+            int free=64-(position&63);
+            long value;
+
+            if(n<=free){
+                value=(words[word]>>>(free-n))&mask(n);
+            }else{
+                int rest=n-free;
+                value=((words[word]&mask(free))<<rest) | (words[word+1]>>>(64-rest));
+            }
+            position+=n;
+            return value;
+        }
+    }
+    //endregion
+}
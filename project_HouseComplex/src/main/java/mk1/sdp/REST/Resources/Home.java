@@ -10,17 +10,19 @@ public class Home {
     public String address;
     public int listeningPort;
 
-    private final  List<Pair<Long,Double>> measureList; //pair: left=timestampFromMidnight, right=measure
+    private final StatSeries measureList; //left=timestampFromMidnight, right=measure
+    volatile long version;                //of the statistics, given by the complex
+    volatile long suspendedAt;            //when it left the complex, while suspended
 
     public Home(){
-        measureList= new ArrayList<>();
+        measureList= new StatSeries();
     }
 
     public Home(int homeID,String address,int listeningPort){
         this.HomeID=homeID;
         this.address=address;
         this.listeningPort=listeningPort;
-        measureList = new ArrayList<>();
+        measureList = new StatSeries();
     }
 
     public Home(Home h){
@@ -28,18 +30,50 @@ public class Home {
     }
 
     boolean AddMeasure(Pair<Long, Double> m){
-        synchronized (measureList) {
-            measureList.add(m);
-            return measureList.contains(m);
-        }
+        return measureList.add(m.left, m.right);       //synced inside the series
     }
 
-    ArrayList<Pair<Long,Double>> getLastN(int n){
-        List<Pair<Long,Double>> copy;
-        synchronized (measureList){
-            copy= new ArrayList<>(measureList);
-        }
+    List<Pair<Long, Double>> AddMeasures(List<Pair<Long, Double>> m){       //the measures added, the late ones are skipped
+        return measureList.addAll(m);
+    }
+
+    MeasureWindow getLastN(int n){
+        return measureList.getLastN(n);
+    }
+
+    MeasureWindow getRange(long from, long to){
+        return measureList.getRange(from, to);
+    }
+
+    MeasureWindow since(long index){
+        return measureList.since(index);
+    }
+
+    long total(){
+        return measureList.total();
+    }
+
+    ArrayList<RollupBucket> getLastBuckets(Resolution resolution, int n){
+        return measureList.getLastBuckets(resolution, n);
+    }
+
+    ArrayList<RollupBucket> getBucketRange(Resolution resolution, long from, long to){
+        return measureList.getBucketRange(resolution, from, to);
+    }
+
+    KllSketch getSketch(int n){
+        return measureList.getSketch(n);
+    }
+
+    KllSketch getSketch(long from, long to){
+        return measureList.getSketch(from, to);
+    }
+
+    Pair<Double,Double> getMeanDeviation(int n){
+        return measureList.getMeanDeviation(n);
+    }
 
-        return new ArrayList<>(copy.subList(copy.size() - Math.min(copy.size(), n), copy.size()));   //the minimum between n and list.size() --> if n >list.size there would be IndexOutOfBoundException
+    Pair<Double,Double> getMeanDeviation(long from, long to){
+        return measureList.getMeanDeviation(from, to);
     }
 }
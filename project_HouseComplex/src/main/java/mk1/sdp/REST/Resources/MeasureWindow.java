@@ -0,0 +1,43 @@
+package mk1.sdp.REST.Resources;
+
+/**
+ * interval of a statistics series fixed when it is created, read a block at a time.
+ * measures added afterwards are not part of it, so a large read can be streamed without copying the whole interval:
+ * the series lock is held only while copying a block
+ */
+public final class MeasureWindow {
+    public static final int BLOCK = Integer.getInteger("sdp.stream.block", 1024);      //measures copied per lock acquisition
+
+    private final StatSeries series;
+    private final long end;
+    private long next;
+
+    MeasureWindow(StatSeries series, long first, long end){
+        this.series=series;
+        this.next=first;
+        this.end=Math.max(first, end);
+    }
+
+    public long position(){             //index in the series of the next measure to read
+        return next;
+    }
+
+    public long remaining(){
+        return end-next;
+    }
+
+    /**
+     * copies the next measures of the window in the given arrays (at most their length)
+     * @return how many measures were copied, 0 when the window is over
+     * @throws IllegalStateException if the retention dropped measures of the window before they were read
+     */
+    public int read(long[] timestamps, double[] measures){
+        if(next>=end) return 0;
+
+        int n=series.read(next, end, timestamps, measures);
+        if(n<0) throw new IllegalStateException("the statistics were overwritten while being read");
+
+        next+=n;
+        return n;
+    }
+}
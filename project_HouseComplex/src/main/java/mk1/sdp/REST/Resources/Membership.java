@@ -0,0 +1,73 @@
+package mk1.sdp.REST.Resources;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * immutable view of the houses in the complex at a given version, without their statistics.
+ * a new one replaces the old one on every insertion or removal of a house, readers only need the current reference.
+ * the JSON bodies are built the first time they are asked and then shared by every request of the same version
+ */
+public final class Membership {
+    private static final ObjectMapper mapper=new ObjectMapper();
+    static final Membership EMPTY=new Membership(0, Collections.emptyList());
+
+    public final long version;
+    private final TreeMap<Integer,Home> houses;     //copies, sorted by ID
+
+    private volatile byte[] houseList;      //JSON array of the houses, answer to a join
+    private volatile byte[] houseMap;       //JSON object of the houses by ID, the HouseList of the complex
+
+    private Membership(long version, Collection<Home> current){
+        this.version=version;
+        this.houses=new TreeMap<>();
+        for(Home h:current){
+            houses.put(h.HomeID, new Home(h));
+        }
+    }
+
+    static Membership of(long version, Collection<Home> current){
+        return new Membership(version, current);
+    }
+
+    public int size(){
+        return houses.size();
+    }
+
+    /**
+     * @return the houses as a JSON array, same as a List of Home serialized by Jersey
+     */
+    public byte[] houseListJson(){
+        byte[] json=houseList;
+        if(json==null){                 //two threads may both build it, the result is the same
+            json=serialize(houses.values());
+            houseList=json;
+        }
+        return json;
+    }
+
+    /**
+     * @return the houses as a JSON object {id:house}, the HouseList of the Complex resource
+     */
+    public byte[] houseMapJson(){
+        byte[] json=houseMap;
+        if(json==null){
+            json=serialize(houses);
+            houseMap=json;
+        }
+        return json;
+    }
+
+    private static byte[] serialize(Object o){
+        try {
+            return mapper.writeValueAsBytes(o);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
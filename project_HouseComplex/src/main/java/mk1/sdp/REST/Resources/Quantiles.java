@@ -0,0 +1,36 @@
+package mk1.sdp.REST.Resources;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * distribution of the measures of a window, estimated by a KLL sketch: min and max are exact,
+ * the percentiles within the rank error of KllSketch
+ */
+@XmlRootElement
+public class Quantiles {
+    public long count;
+    public double min;
+    public double p50;
+    public double p95;
+    public double p99;
+    public double max;
+
+    public Quantiles(){}     //needed for marshalling
+
+    /**
+     * @return the quantiles of the sketch, null if it is empty
+     */
+    static Quantiles of(KllSketch s){
+        if(s.count()==0) return null;
+
+        double[] q=s.quantiles(0, 0.5, 0.95, 0.99, 1);
+        Quantiles r=new Quantiles();
+        r.count=s.count();
+        r.min=q[0];
+        r.p50=q[1];
+        r.p95=q[2];
+        r.p99=q[3];
+        r.max=q[4];
+        return r;
+    }
+}
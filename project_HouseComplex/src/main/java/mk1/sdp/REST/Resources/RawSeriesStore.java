@@ -0,0 +1,192 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+import java.util.Arrays;
+
+/**
+ * measures stored as two parallel primitive arrays (timestamp, measure) used as a ring buffer.
+ * the arrays grow up to the retention, after that every new measure overwrites the oldest one:
+ * adding a measure is O(1) and it does not allocate once the retention is reached.
+ * <p>
+ * next to every measure the store keeps the running sum and sum of squares of the measures before it,
+ * so mean and standard deviation of any stored interval are two subtractions away
+ */
+class RawSeriesStore implements SeriesStore {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final double DRIFT = 1e3;    //a measure this many times farther from the offset than the stored ones moves the offset
+
+    private final int retention;
+    private long[] timestamps;
+    private double[] measures;
+    private double[] sumsBefore;     //sum of (measure-offset) of every measure added before the one in the same slot
+    private double[] squaresBefore;  //same as above for (measure-offset)^2
+    private int size;       //number of measures currently stored
+    private long total;     //number of measures ever added: the oldest stored one is total-size
+
+    private double offset;  //the sums are kept on measures shifted by offset to avoid cancellation in the variance
+    private double runningSum;
+    private double runningSquares;
+    private long rebasedAt;     //total at the last rebase
+
+    RawSeriesStore(int retention){
+        this.retention=retention;
+        timestamps=new long[0];     //allocated on the first measure, houses without statistics cost nothing
+        measures=new double[0];
+        sumsBefore=new double[0];
+        squaresBefore=new double[0];
+    }
+
+    @Override
+    public void add(long timestamp, double measure){
+        if(size==timestamps.length && size<retention){
+            grow();
+        }
+        if(total==0){
+            offset=measure;
+        }
+        double shifted=measure-offset;
+        boolean drifted= size>0 && shifted*shifted > DRIFT*DRIFT*(runningSquares-runningSquaresAt(total-size))/size;     //before the oldest is overwritten
+
+        int slot=slotOf(total);
+        timestamps[slot]=timestamp;
+        measures[slot]=measure;
+        sumsBefore[slot]=runningSum;
+        squaresBefore[slot]=runningSquares;
+
+        runningSum+=shifted;
+        runningSquares+=shifted*shifted;
+
+        total++;
+        if(size<retention) size++;
+
+        if(total%retention==0){      //once every full turn of the ring the sums restart from the oldest measure, they can't grow forever
+            rebase();
+        }else if(drifted && total-rebasedAt>=Math.max(1, retention/8)){      //the level changed: the new measures would cancel out in the variance.
+            rebase();                                                       //at most 8 extra rebases per turn, still O(1) amortized
+        }
+    }
+
+    @Override
+    public void truncate(long end){     //O(1): the running sums before end are stored next to the measure at end
+        if(end>=total) return;
+
+        runningSum=runningSumAt(end);
+        runningSquares=runningSquaresAt(end);
+        size-=(int)(total-end);
+        total=end;
+        rebasedAt=Math.min(rebasedAt, end);
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public long total(){
+        return total;
+    }
+
+    @Override
+    public long lastTimestamp(){
+        return timestamps[slotOf(total-1)];
+    }
+
+    @Override
+    public long firstAtOrAfter(long timestamp){         //binary search on the timestamps
+        long low=total-size, high=total;
+        while(low<high){
+            long mid=(low+high)>>>1;
+            if(timestamps[slotOf(mid)]<timestamp) low=mid+1;
+            else high=mid;
+        }
+        return low;
+    }
+
+    @Override
+    public MeasureCursor cursor(long first, long end){
+        return new MeasureCursor() {
+            private long next=first;
+            private int slot;
+
+            @Override
+            public boolean next() {
+                if(next>=end) return false;
+                slot=slotOf(next++);
+                return true;
+            }
+
+            @Override
+            public long timestamp() {
+                return timestamps[slot];
+            }
+
+            @Override
+            public double measure() {
+                return measures[slot];
+            }
+        };
+    }
+
+    @Override
+    public long encodedBytes(){     //timestamp, measure and the two running sums per slot
+        return 32L*timestamps.length;
+    }
+
+    @Override
+    public Pair<Double,Double> meanDeviation(long first, long end){      //O(1)
+        int count=(int)(end-first);
+        double sum=runningSumAt(end)-runningSumAt(first);
+        double squares=runningSquaresAt(end)-runningSquaresAt(first);
+
+        double shiftedMean=sum/count;
+        double variance=Math.max(0, squares/count - shiftedMean*shiftedMean);      //rounding could make it slightly negative
+
+        return Pair.of(offset+shiftedMean, Math.sqrt(variance));
+    }
+
+    private double runningSumAt(long index){           //sum of the measures before the given index
+        return index==total? runningSum : sumsBefore[slotOf(index)];
+    }
+
+    private double runningSquaresAt(long index){
+        return index==total? runningSquares : squaresBefore[slotOf(index)];
+    }
+
+    private int slotOf(long index){     //before the first wrap total==size, so the position never moves while growing
+        return (int)(index % timestamps.length);
+    }
+
+    private void grow(){
+        int capacity=(int)Math.min((long)retention, Math.max(INITIAL_CAPACITY, 2L*timestamps.length));
+        timestamps=Arrays.copyOf(timestamps, capacity);
+        measures=Arrays.copyOf(measures, capacity);
+        sumsBefore=Arrays.copyOf(sumsBefore, capacity);
+        squaresBefore=Arrays.copyOf(squaresBefore, capacity);
+    }
+
+    /**
+     * recomputes the running sums of the stored measures around the last one, so the windows of the recent level
+     * keep their precision even if the older measures were far from it: the sums are anchored at the last measure
+     * and taken backwards, a window ending at the last measure never subtracts the large sums of an older level.
+     * O(retention) every retention insertions, so still O(1) amortized
+     */
+    private void rebase(){
+        offset=measures[slotOf(total-1)];
+        rebasedAt=total;
+        runningSum=0;           //the last measure is the offset, its shifted value is 0
+        runningSquares=0;
+
+        double sum=0, squares=0;
+        for(long i=total-1;i>=total-size;i--){     //the sum before i is minus the sum of [i, last)
+            int slot=slotOf(i);
+            double shifted=measures[slot]-offset;
+            sum-=shifted;
+            squares-=shifted*shifted;
+
+            sumsBefore[slot]=sum;
+            squaresBefore[slot]=squares;
+        }
+    }
+}
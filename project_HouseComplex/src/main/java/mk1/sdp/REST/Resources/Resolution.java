@@ -0,0 +1,31 @@
+package mk1.sdp.REST.Resources;
+
+/**
+ * granularity of the statistics returned by the REST server: the raw measures or their aggregates over fixed time buckets
+ */
+public enum Resolution {
+    RAW(0, 0),
+    MINUTE(60_000L, 1440),          //one day of minutes
+    HOUR(3_600_000L, 720),          //30 days of hours
+    DAY(86_400_000L, 365);          //one year of days
+
+    final long width;               //ms covered by a bucket
+    final int buckets;              //buckets kept per series
+
+    Resolution(long width, int buckets){
+        this.width=width;
+        this.buckets=buckets;
+    }
+
+    /**
+     * @return the resolution with the given name (case insensitive), RAW if the name is null, null if unknown
+     */
+    public static Resolution parse(String name){
+        if(name==null) return RAW;
+
+        for(Resolution r:values()){
+            if(r.name().equalsIgnoreCase(name)) return r;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,146 @@
+package mk1.sdp.REST.Resources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * min/max/mean/count of a series over fixed time buckets, kept as a ring of parallel primitive arrays like StatSeries.
+ * it is fed in timestamp order, so a measure either updates the last bucket or opens a new one: O(1) per measure.
+ * a late measure (see StatSeries.REORDER) updates its bucket or inserts it, moving only the buckets after it.
+ * not synchronized, guarded by the series that owns it
+ */
+class Rollup {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long width;
+    private final int capacity;
+    private long[] starts;
+    private int[] counts;
+    private double[] mins;
+    private double[] maxs;
+    private double[] sums;
+    private int size;       //buckets currently stored
+    private long total;     //buckets ever opened
+
+    Rollup(Resolution resolution){
+        this.width=resolution.width;
+        this.capacity=resolution.buckets;
+        starts=new long[0];
+        counts=new int[0];
+        mins=new double[0];
+        maxs=new double[0];
+        sums=new double[0];
+    }
+
+    void add(long timestamp, double measure){
+        long start=Math.floorDiv(timestamp, width)*width;
+
+        if(size>0 && starts[slotOf(total-1)]==start){
+            int slot=slotOf(total-1);
+            counts[slot]++;
+            mins[slot]=Math.min(mins[slot], measure);
+            maxs[slot]=Math.max(maxs[slot], measure);
+            sums[slot]+=measure;
+            return;
+        }
+
+        if(size>0 && starts[slotOf(total-1)]>start){
+            addLate(start, measure);
+            return;
+        }
+
+        if(size==starts.length && size<capacity){
+            grow();
+        }
+        int slot=slotOf(total);
+        starts[slot]=start;
+        counts[slot]=1;
+        mins[slot]=measure;
+        maxs[slot]=measure;
+        sums[slot]=measure;
+
+        total++;
+        if(size<capacity) size++;
+    }
+
+    private void addLate(long start, double measure){      //the buckets after it only hold the measures that came before it, a few
+        long index=firstAtOrAfter(start);
+        if(index<total && starts[slotOf(index)]==start){
+            int slot=slotOf(index);
+            counts[slot]++;
+            mins[slot]=Math.min(mins[slot], measure);
+            maxs[slot]=Math.max(maxs[slot], measure);
+            sums[slot]+=measure;
+            return;
+        }
+        if(index==total-size && size==capacity) return;     //older than every bucket kept
+
+        if(size==starts.length && size<capacity){
+            grow();
+        }
+        for(long i=total;i>index;i--){          //at capacity the first move overwrites the oldest bucket
+            int to=slotOf(i), from=slotOf(i-1);
+            starts[to]=starts[from];
+            counts[to]=counts[from];
+            mins[to]=mins[from];
+            maxs[to]=maxs[from];
+            sums[to]=sums[from];
+        }
+        int slot=slotOf(index);
+        starts[slot]=start;
+        counts[slot]=1;
+        mins[slot]=measure;
+        maxs[slot]=measure;
+        sums[slot]=measure;
+
+        total++;
+        if(size<capacity) size++;
+    }
+
+    ArrayList<RollupBucket> getLastN(int n){
+        int count=Math.max(0, Math.min(n, size));
+        return bucketsBetween(total-count, total);
+    }
+
+    /**
+     * buckets that overlap [from, to]
+     */
+    ArrayList<RollupBucket> getRange(long from, long to){
+        long first= from==Long.MIN_VALUE? total-size : firstAtOrAfter(Math.floorDiv(from, width)*width);
+        long end= to==Long.MAX_VALUE? total : firstAtOrAfter(to+1);
+        return bucketsBetween(first, end);
+    }
+
+    private ArrayList<RollupBucket> bucketsBetween(long first, long end){
+        ArrayList<RollupBucket> buckets=new ArrayList<>((int)Math.max(0, end-first));
+
+        for(long i=first;i<end;i++){
+            int slot=slotOf(i);
+            buckets.add(new RollupBucket(starts[slot], counts[slot], mins[slot], maxs[slot], sums[slot]/counts[slot]));
+        }
+        return buckets;
+    }
+
+    private long firstAtOrAfter(long start){
+        long low=total-size, high=total;
+        while(low<high){
+            long mid=(low+high)>>>1;
+            if(starts[slotOf(mid)]<start) low=mid+1;
+            else high=mid;
+        }
+        return low;
+    }
+
+    private int slotOf(long index){
+        return (int)(index % starts.length);
+    }
+
+    private void grow(){
+        int newCapacity=(int)Math.min((long)capacity, Math.max(INITIAL_CAPACITY, 2L*starts.length));
+        starts=Arrays.copyOf(starts, newCapacity);
+        counts=Arrays.copyOf(counts, newCapacity);
+        mins=Arrays.copyOf(mins, newCapacity);
+        maxs=Arrays.copyOf(maxs, newCapacity);
+        sums=Arrays.copyOf(sums, newCapacity);
+    }
+}
@@ -0,0 +1,25 @@
+package mk1.sdp.REST.Resources;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * aggregate of the measures whose timestamp falls in [start, start+width)
+ */
+@XmlRootElement
+public class RollupBucket {
+    public long start;
+    public int count;
+    public double min;
+    public double max;
+    public double mean;
+
+    public RollupBucket(){}     //needed for marshalling
+
+    public RollupBucket(long start, int count, double min, double max, double mean){
+        this.start=start;
+        this.count=count;
+        this.min=min;
+        this.max=max;
+        this.mean=mean;
+    }
+}
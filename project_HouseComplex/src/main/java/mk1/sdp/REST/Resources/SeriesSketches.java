@@ -0,0 +1,57 @@
+package mk1.sdp.REST.Resources;
+
+/**
+ * quantile sketches of a series, one per block of sdp.sketch.block consecutive measures (by absolute index).
+ * the sketch of a window merges the blocks inside it and adds the few measures of the two partial blocks at its ends,
+ * so it costs O(window/block) merges plus at most 2 blocks of measures, never a scan of the whole window.
+ * not synchronized, guarded by the series that owns it
+ */
+class SeriesSketches {
+    static final int BLOCK = Integer.getInteger("sdp.sketch.block", 4096);
+
+    private final KllSketch[] blocks;       //ring: every block that may still hold a stored measure
+
+    SeriesSketches(int retention){
+        blocks=new KllSketch[(retention+BLOCK-1)/BLOCK+1];
+    }
+
+    /**
+     * @param index = absolute index of the measure, one more than the previous one
+     */
+    void add(long index, double measure){
+        int slot=slotOf(index/BLOCK);
+        if(index%BLOCK==0 || blocks[slot]==null) blocks[slot]=new KllSketch();     //a new block reuses the slot of the oldest
+        blocks[slot].add(measure);
+    }
+
+    /**
+     * sketch of the measures [first, end), all of them still stored
+     */
+    KllSketch sketch(SeriesStore store, long first, long end){
+        KllSketch s=new KllSketch();
+        if(end<=first) return s;
+
+        long firstFull=(first+BLOCK-1)/BLOCK;       //blocks entirely in the window
+        long endFull=end/BLOCK;
+        if(firstFull>=endFull){
+            addMeasures(s, store, first, end);
+            return s;
+        }
+
+        addMeasures(s, store, first, firstFull*BLOCK);
+        for(long b=firstFull;b<endFull;b++) s.merge(blocks[slotOf(b)]);
+        addMeasures(s, store, endFull*BLOCK, end);
+        return s;
+    }
+
+    private static void addMeasures(KllSketch s, SeriesStore store, long first, long end){
+        if(end<=first) return;
+
+        SeriesStore.MeasureCursor c=store.cursor(first, end);
+        while(c.next()) s.add(c.measure());
+    }
+
+    private int slotOf(long block){
+        return (int)(block % blocks.length);
+    }
+}
@@ -0,0 +1,47 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+/**
+ * storage of the measures of a StatSeries, fed in timestamp order (a late measure is put in place by truncate and add again).
+ * the measures are addressed by absolute index: the i-th measure ever added has index i,
+ * the stored ones are [total()-size(), total()). not synchronized, guarded by the series that owns it
+ */
+interface SeriesStore {
+
+    /**
+     * the series of a new house or of the complex, raw or compressed depending on the sdp.series.compressed property
+     */
+    static SeriesStore create(int retention){
+        return Boolean.getBoolean("sdp.series.compressed")? new GorillaSeriesStore(retention) : new RawSeriesStore(retention);
+    }
+
+    void add(long timestamp, double measure);
+
+    void truncate(long end);                //drops the measures from index end to the last one, end >= total()-size()
+
+    int size();
+
+    long total();
+
+    long lastTimestamp();                   //only if size()>0
+
+    long firstAtOrAfter(long timestamp);    //index of the first measure with a timestamp >= the given one, total() if none
+
+    MeasureCursor cursor(long first, long end);     //first included, end excluded
+
+    Pair<Double,Double> meanDeviation(long first, long end);    //left=mean, right=population standard deviation. end>first
+
+    long encodedBytes();    //memory held by the stored measures and their aggregates, allocated capacity included
+
+    /**
+     * forward only iterator over stored measures
+     */
+    interface MeasureCursor {
+        boolean next();
+
+        long timestamp();
+
+        double measure();
+    }
+}
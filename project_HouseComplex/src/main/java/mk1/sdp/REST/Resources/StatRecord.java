@@ -0,0 +1,31 @@
+package mk1.sdp.REST.Resources;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * a single statistic inside a batch upload: a local mean of the house HomeID or, if global, a mean of the whole complex
+ */
+@XmlRootElement
+public class StatRecord {
+    public int HomeID;
+    public boolean global;
+    public long timestamp;
+    public double measure;
+
+    public StatRecord(){}     //needed for marshalling
+
+    public StatRecord(int homeID, boolean global, long timestamp, double measure){
+        this.HomeID=homeID;
+        this.global=global;
+        this.timestamp=timestamp;
+        this.measure=measure;
+    }
+
+    public static StatRecord local(int homeID, long timestamp, double measure){
+        return new StatRecord(homeID, false, timestamp, measure);
+    }
+
+    public static StatRecord global(long timestamp, double measure){
+        return new StatRecord(-1, true, timestamp, measure);
+    }
+}
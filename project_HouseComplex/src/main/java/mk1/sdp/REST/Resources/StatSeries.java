@@ -0,0 +1,190 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * time series of statistics: the measures live in a SeriesStore (raw ring buffer or Gorilla compressed chunks,
+ * see the sdp.series.compressed property), addressed by absolute index and bounded by the retention.
+ * <p>
+ * the measures are kept sorted by timestamp, time ranges are found by binary search on the timestamps.
+ * a late measure is put in its place if at most REORDER measures are newer than it (the clocks of the houses
+ * and of the coordinators are not in sync), an older one is refused.
+ * <p>
+ * every measure also updates the rollups of the series (per minute, hour and day), so long time ranges can be read
+ * as a few hundred buckets even after the raw measures are gone, and the quantile sketch of its block (see SeriesSketches)
+ */
+class StatSeries {
+    static final int RETENTION = Integer.getInteger("sdp.retention", 20000);    //max number of measures kept per series
+    static final int REORDER = Integer.getInteger("sdp.series.reorder", 64);    //max measures newer than a late one, 0 refuses every late measure
+
+    private final SeriesStore store;
+    private final Rollup[] rollups;     //indexed by Resolution.ordinal(), no rollup for RAW
+    private final SeriesSketches sketches;
+
+    StatSeries(){
+        this(RETENTION);
+    }
+
+    StatSeries(int retention){
+        if(retention<=0) throw new IllegalArgumentException("retention must be positive: "+retention);
+
+        store=SeriesStore.create(retention);
+        sketches=new SeriesSketches(retention);
+        rollups=new Rollup[Resolution.values().length];
+        for(Resolution r:Resolution.values()){
+            if(r!=Resolution.RAW) rollups[r.ordinal()]=new Rollup(r);
+        }
+    }
+
+    synchronized boolean add(long timestamp, double measure){
+        long position= store.size()==0 || timestamp>=store.lastTimestamp()? store.total() : firstAfter(timestamp);   //after the ones with the same timestamp
+        if(store.total()-position>REORDER) return false;        //too late
+
+        sketches.add(store.total(), measure);      //the block of a late measure is the one of its arrival, the sketches are approximate anyway
+        if(position==store.total()){
+            store.add(timestamp, measure);
+        }else{
+            insert(position, timestamp, measure);
+        }
+        for(Rollup r:rollups){
+            if(r!=null) r.add(timestamp, measure);
+        }
+        return true;
+    }
+
+    /**
+     * adds all the measures at once: a reader sees either none or all of them.
+     * the measures too late to be added (see add) are skipped
+     * @return the measures added, in the order given
+     */
+    synchronized List<Pair<Long,Double>> addAll(List<Pair<Long,Double>> toAdd){
+        List<Pair<Long,Double>> added=new ArrayList<>(toAdd.size());
+        for(Pair<Long,Double> m:toAdd){
+            if(add(m.left, m.right)) added.add(m);
+        }
+        return added.size()==toAdd.size()? toAdd : added;
+    }
+
+    private void insert(long position, long timestamp, double measure){      //O(REORDER): the newer measures are cut and added again after it
+        int count=(int)(store.total()-position);
+        long[] timestamps=new long[count];
+        double[] measures=new double[count];
+        SeriesStore.MeasureCursor cursor=store.cursor(position, store.total());
+        for(int i=0;cursor.next();i++){
+            timestamps[i]=cursor.timestamp();
+            measures[i]=cursor.measure();
+        }
+
+        store.truncate(position);
+        store.add(timestamp, measure);
+        for(int i=0;i<count;i++){
+            store.add(timestamps[i], measures[i]);
+        }
+    }
+
+    /**
+     * the last n measures, read through the window
+     */
+    synchronized MeasureWindow getLastN(int n){
+        int count=Math.max(0, Math.min(n, store.size()));   //the minimum between n and the stored measures
+        return new MeasureWindow(this, store.total()-count, store.total());
+    }
+
+    /**
+     * measures with from <= timestamp <= to, found in O(log n)
+     */
+    synchronized MeasureWindow getRange(long from, long to){
+        return new MeasureWindow(this, store.firstAtOrAfter(from), firstAfter(to));
+    }
+
+    /**
+     * measures from index first (or the oldest stored, if first is gone) to the last one
+     */
+    synchronized MeasureWindow since(long first){
+        return new MeasureWindow(this, Math.max(first, store.total()-store.size()), store.total());
+    }
+
+    /**
+     * copies the measures from index first (up to end or the length of the arrays)
+     * @return how many were copied, -1 if the measure at index first is not stored anymore
+     */
+    synchronized int read(long first, long end, long[] timestamps, double[] measures){
+        if(first<store.total()-store.size()) return -1;
+
+        int count=(int)Math.min(end-first, Math.min(timestamps.length, measures.length));
+        SeriesStore.MeasureCursor cursor=store.cursor(first, first+count);
+        for(int i=0;cursor.next();i++){
+            timestamps[i]=cursor.timestamp();
+            measures[i]=cursor.measure();
+        }
+        return count;
+    }
+
+    /**
+     * last n buckets of the given resolution
+     */
+    synchronized ArrayList<RollupBucket> getLastBuckets(Resolution resolution, int n){
+        return rollups[resolution.ordinal()].getLastN(n);
+    }
+
+    /**
+     * buckets of the given resolution overlapping [from, to]
+     */
+    synchronized ArrayList<RollupBucket> getBucketRange(Resolution resolution, long from, long to){
+        return rollups[resolution.ordinal()].getRange(from, to);
+    }
+
+    /**
+     * mean and population standard deviation of the last n measures in O(1) (O(chunk size) when compressed)
+     * @param n = number of measures to consider
+     * @return left=mean, right=standardDeviation. null if there are no measures
+     */
+    synchronized Pair<Double,Double> getMeanDeviation(int n){
+        int count=Math.min(n, store.size());
+        if(count<=0) return null;
+
+        return store.meanDeviation(store.total()-count, store.total());
+    }
+
+    /**
+     * mean and population standard deviation of the measures with from <= timestamp <= to in O(log n)
+     */
+    synchronized Pair<Double,Double> getMeanDeviation(long from, long to){
+        long first=store.firstAtOrAfter(from);
+        long end=firstAfter(to);
+        if(end<=first) return null;
+
+        return store.meanDeviation(first, end);
+    }
+
+    /**
+     * quantile sketch of the last n measures, a copy the caller may merge into others
+     * @return an empty sketch if there are no measures
+     */
+    synchronized KllSketch getSketch(int n){
+        int count=Math.max(0, Math.min(n, store.size()));
+        return sketches.sketch(store, store.total()-count, store.total());
+    }
+
+    /**
+     * quantile sketch of the measures with from <= timestamp <= to
+     */
+    synchronized KllSketch getSketch(long from, long to){
+        return sketches.sketch(store, store.firstAtOrAfter(from), firstAfter(to));
+    }
+
+    synchronized int size(){
+        return store.size();
+    }
+
+    synchronized long total(){          //index of the next measure
+        return store.total();
+    }
+
+    private long firstAfter(long timestamp){            //index of the first measure with a timestamp > the given one, total if none
+        return timestamp==Long.MAX_VALUE? store.total() : store.firstAtOrAfter(timestamp+1);
+    }
+}
@@ -0,0 +1,102 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * houses of the complex ordered by the mean of their last measures, one order per window of sdp.top.windows (default 1,10,100:
+ * the last local mean sent by a house, and the average of its last 10 and 100).
+ * a new statistic moves its house in every order in O(log houses), so the k highest are read in O(k) without looking at the others.
+ * a house is updated while its series is locked, so its entries always follow its last statistic
+ */
+class TopIndex {
+    static final int[] WINDOWS = parseWindows(System.getProperty("sdp.top.windows", "1,10,100"));
+
+    private final ConcurrentSkipListSet<Ranked>[] orders;
+    private final ConcurrentHashMap<Integer,Ranked[]> current=new ConcurrentHashMap<>();     //entries of every ranked house, by window
+
+    @SuppressWarnings("unchecked")
+    TopIndex(){
+        orders=new ConcurrentSkipListSet[WINDOWS.length];
+        for(int i=0;i<WINDOWS.length;i++) orders[i]=new ConcurrentSkipListSet<>();
+    }
+
+    /**
+     * ranks the house again after its statistics changed
+     */
+    void update(Home h){
+        Ranked[] now=new Ranked[WINDOWS.length];
+        for(int i=0;i<WINDOWS.length;i++){
+            Pair<Double,Double> meanDev=h.getMeanDeviation(WINDOWS[i]);
+            if(meanDev==null) return;           //no statistics yet
+
+            now[i]=new Ranked(h.HomeID, meanDev.left);
+        }
+
+        Ranked[] old=current.put(h.HomeID, now);
+        for(int i=0;i<WINDOWS.length;i++){
+            if(old!=null) orders[i].remove(old[i]);
+            orders[i].add(now[i]);
+        }
+    }
+
+    void remove(int houseID){
+        Ranked[] old=current.remove(houseID);
+        if(old==null) return;
+
+        for(int i=0;i<WINDOWS.length;i++) orders[i].remove(old[i]);
+    }
+
+    /**
+     * @return the k houses with the highest mean over the window, left=HomeID right=mean. null if the window is not indexed
+     */
+    List<Pair<Integer,Double>> top(int k, int window){
+        int i=Arrays.binarySearch(WINDOWS, window);
+        if(i<0) return null;
+
+        List<Pair<Integer,Double>> top=new ArrayList<>(Math.min(k, current.size()));
+        Iterator<Ranked> it=orders[i].iterator();
+        while(top.size()<k && it.hasNext()){
+            Ranked r=it.next();
+            top.add(Pair.of(r.house, r.mean));
+        }
+        return top;
+    }
+
+    private static int[] parseWindows(String list){
+        int[] w=Arrays.stream(list.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).filter(n -> n>0).sorted().distinct().toArray();
+        return w.length>0? w : new int[]{1};
+    }
+
+    private static final class Ranked implements Comparable<Ranked> {     //highest mean first, ties by ID
+        final int house;
+        final double mean;
+
+        Ranked(int house, double mean){
+            this.house=house;
+            this.mean=mean;
+        }
+
+        @Override
+        public int compareTo(Ranked o) {
+            int c=Double.compare(o.mean, mean);
+            return c!=0? c : Integer.compare(house, o.house);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            return o instanceof Ranked && compareTo((Ranked) o)==0;
+        }
+
+        @Override
+        public int hashCode(){
+            return Integer.hashCode(house)*31+Double.hashCode(mean);
+        }
+    }
+}
@@ -2,24 +2,87 @@ package mk1.sdp.REST.Services;
 
 
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import mk1.sdp.REST.Ingest.IngestPipeline;
+import mk1.sdp.REST.Resources.BatchResult;
 import mk1.sdp.REST.Resources.Complex;
 import mk1.sdp.REST.Resources.Home;
+import mk1.sdp.REST.Resources.MeasureWindow;
+import mk1.sdp.REST.Resources.Membership;
+import mk1.sdp.REST.Resources.Quantiles;
+import mk1.sdp.REST.Resources.Resolution;
+import mk1.sdp.REST.Resources.RollupBucket;
+import mk1.sdp.REST.Resources.StatRecord;
+import mk1.sdp.GRPC.PeerMessages.Bucket;
+import mk1.sdp.GRPC.PeerMessages.BucketList;
+import mk1.sdp.GRPC.PeerMessages.MeanDeviation;
+import mk1.sdp.GRPC.PeerMessages.Measure;
+import mk1.sdp.GRPC.PeerMessages.Percentiles;
+import mk1.sdp.GRPC.PeerMessages.StatBatch;
+import mk1.sdp.GRPC.PeerMessages.StatList;
 import mk1.sdp.misc.Pair;
 
+import mk1.sdp.misc.ProtobufProvider;
+
+import static mk1.sdp.misc.ProtobufProvider.APPLICATION_PROTOBUF;
+
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Path("/complex")
 public class ComplexService {
+    private static final JsonFactory JSON = new JsonFactory();
+    static final String BOOT = Long.toString(System.currentTimeMillis(), 36);    //versions restart with the server, the ETags (and the ids of the stream events) must not match across restarts
+    private static final ResponseCache cache = new ResponseCache();
+    static final int JSON_BYTES_PER_MEASURE = 48;     //{"left":1234567890123,"right":21.123456789},
+    private static final byte[] HOUSE_LIST = "{\"HouseList\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GLOBAL_STAT_LIST = ",\"Global_Stat_List\":".getBytes(StandardCharsets.UTF_8);
+    public static final String INGEST_TOKEN = "X-Ingest-Token";
+    private static final long AFTER_TIMEOUT_MS = Long.getLong("sdp.ingest.afterTimeoutMs", 2000);     //wait of a read after an ingest token
+
+    @Context
+    private Request request;
+    @Context
+    private UriInfo uriInfo;
+    @QueryParam("after")
+    private String after;           //token of an asynchronously ingested statistic the reader wants to see
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response serviceGetHouseComplex(){
-
-        return Response.ok(Complex.getInstance(),  MediaType.APPLICATION_JSON).build();
+    public Response serviceGetHouseComplex(){       //{"HouseList":{id:house},"Global_Stat_List":[pair]}
+        Membership houses=Complex.getInstance().getMembership();
+        long globalVersion=Complex.getInstance().getGlobalVersion();       //taken before the list: a body newer than its tag is only sent again
+        EntityTag etag=new EntityTag(BOOT+"-c"+houses.version+"-g"+globalVersion);
+
+        Response.ResponseBuilder notModified=request.evaluatePreconditions(etag);
+        if(notModified!=null) return notModified.build();
+
+        MeasureWindow global=Complex.getInstance().getLastGlobalStat(Integer.MAX_VALUE);
+        StreamingOutput body= output -> {
+            output.write(HOUSE_LIST);
+            output.write(houses.houseMapJson());
+            output.write(GLOBAL_STAT_LIST);
+            writeJson(global, new long[MeasureWindow.BLOCK], new double[MeasureWindow.BLOCK], output);
+            output.write('}');
+        };
+        return Response.ok(body,  MediaType.APPLICATION_JSON).tag(etag).build();
     }
 
     @Path("/add")
@@ -29,12 +92,8 @@ public class ComplexService {
     public Response serviceAddHouse(Home h){
 
         if(Complex.getInstance().addHouse(h)) {
-            List<Home> copy;
-            synchronized (Complex.getInstance().complex){                       //synced to obtain the most recent copy of houses in the NETWORK
-                copy=new ArrayList<>(Complex.getInstance().complex.values());
-            }
-            copy=removeStatistics( copy);
-            return Response.ok(copy, MediaType.APPLICATION_JSON).build();
+            Membership houses=Complex.getInstance().getMembership();     //houses in the NETWORK, at least up to this insertion
+            return Response.ok(houses.houseListJson(), MediaType.APPLICATION_JSON).build();
         }
         return Response.status(Response.Status.CONFLICT).entity("there is already an house with ID="+h.HomeID).build();
     }
@@ -51,6 +110,63 @@ public class ComplexService {
 
     }
 
+    @Path("/top")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response serviceGetTop(@QueryParam("k") @DefaultValue("10") int k, @QueryParam("window") Integer window){   //the heaviest consumers, left=HomeID right=mean
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
+
+        if(k<=0) return Response.status(Response.Status.BAD_REQUEST).entity("k must be positive").build();
+
+        int[] windows=Complex.getTopWindows();
+        List<Pair<Integer,Double>> top=Complex.getInstance().getTop(k, window==null? windows[0] : window);
+        if(top==null)
+            return Response.status(Response.Status.BAD_REQUEST).entity("window must be one of "+Arrays.toString(windows)).build();
+
+        return Response.ok(top, MediaType.APPLICATION_JSON).build();
+    }
+
+    @Path("/batch")
+    @PUT
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response serviceAddStatBatch(List<StatRecord> records){     //many local and global statistics in a single request, each house is updated atomically
+        if(records==null || records.isEmpty()) return Response.status(Response.Status.PARTIAL_CONTENT).entity("request is empty").build();
+
+        Map<Integer,List<Pair<Long,Double>>> byHouse=new LinkedHashMap<>();
+        List<Pair<Long,Double>> global=new ArrayList<>();
+
+        for(StatRecord r:records){
+            if(r==null) return Response.status(Response.Status.BAD_REQUEST).entity("the batch contains an empty record").build();
+
+            if(r.global)
+                global.add(Pair.of(r.timestamp, r.measure));
+            else
+                byHouse.computeIfAbsent(r.HomeID, id -> new ArrayList<>()).add(Pair.of(r.timestamp, r.measure));
+        }
+
+        return addBatch(byHouse, global);
+    }
+
+    @Path("/batch")
+    @PUT
+    @Consumes(APPLICATION_PROTOBUF)
+    public Response serviceAddStatBatch(StatBatch batch){
+        if(batch==null || (batch.getLocalCount()==0 && batch.getGlobalCount()==0)) return Response.status(Response.Status.PARTIAL_CONTENT).entity("request is empty").build();
+
+        Map<Integer,List<Pair<Long,Double>>> byHouse=new LinkedHashMap<>();
+        List<Pair<Long,Double>> global=new ArrayList<>();
+
+        for(Measure m:batch.getLocalList()){
+            byHouse.computeIfAbsent(m.getSenderID(), id -> new ArrayList<>()).add(Pair.of(m.getTimeStamp(), m.getMeasurement()));
+        }
+        for(Measure m:batch.getGlobalList()){
+            global.add(Pair.of(m.getTimeStamp(), m.getMeasurement()));
+        }
+
+        return addBatch(byHouse, global);
+    }
+
     //region HOUSE SERVICES
     @Path("/house")
     @GET
@@ -64,43 +180,113 @@ public class ComplexService {
 
     @Path("/house/stat")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response serviceGetLastNLocalStat(@QueryParam("id") int id, @QueryParam("n") int n){
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetLastNLocalStat(@QueryParam("id") int id, @QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to,
+                                             @QueryParam("resolution") String resolution, @Context HttpHeaders headers){    //from/to (inclusive) select a time range instead of the last n
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
 
         Pair<Response, Home> resp = checkHousePresent(id);
         if(resp.left !=null) return resp.left;
 
-        List<Pair<Long, Double>> list = Complex.getInstance().getLastLocalStat(id, n);
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
+
+        Resolution res=Resolution.parse(resolution);
+        if(res==null) return wrongResolution(resolution);
+
+        EntityTag etag=etagOf("h"+Complex.getInstance().getLocalVersion(id), headers);    //the version is read before the statistics
+        Response unchanged=notModifiedOrCached(etag, headers);
+        if(unchanged!=null) return unchanged;
 
-        return Response.ok(list,MediaType.APPLICATION_JSON).build();
+        if(res!=Resolution.RAW){        //n and the range count buckets instead of measures
+            List<RollupBucket> buckets = isRange(from, to)?
+                    Complex.getInstance().getLocalBucketRange(id, res, lower(from), upper(to)) :
+                    Complex.getInstance().getLastLocalBuckets(id, res, n);
+
+            return bucketsResponse(buckets, headers, etag);
+        }
+
+        MeasureWindow window = isRange(from, to)?
+                Complex.getInstance().getLocalStatRange(id, lower(from), upper(to)) :
+                Complex.getInstance().getLastLocalStat(id, n);
+        if(window==null) return checkHousePresent(id).left;     //removed in the meantime
+
+        return statisticsResponse(window, id, headers, etag);
 
     }
 
     @Path("/house/meanDev")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response serviceGetLocalMeanDev(@QueryParam("id") int id, @QueryParam("n") int n){
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetLocalMeanDev(@QueryParam("id") int id, @QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to, @Context HttpHeaders headers){
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
+
         Pair<Response, Home> resp = checkHousePresent(id);
         if(resp.left !=null) return resp.left;
 
-        return Response.ok(Complex.getInstance().getLocalMeanDev(id,n),MediaType.APPLICATION_JSON).build();
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
+
+        Pair<Double, Double> res = isRange(from, to)?
+                Complex.getInstance().getLocalMeanDev(id, lower(from), upper(to)) :
+                Complex.getInstance().getLocalMeanDev(id, n);
+
+        return meanDevResponse(res, headers);
 
     }
 
+    @Path("/house/quantiles")
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetLocalQuantiles(@QueryParam("id") int id, @QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to, @Context HttpHeaders headers){
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
+
+        Pair<Response, Home> resp = checkHousePresent(id);
+        if(resp.left !=null) return resp.left;
+
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
+
+        Quantiles res = isRange(from, to)?
+                Complex.getInstance().getLocalQuantiles(id, lower(from), upper(to)) :
+                Complex.getInstance().getLocalQuantiles(id, n);
+
+        return quantilesResponse(res, headers);
+    }
+
     @Path("/house/add")
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     public Response serviceAddLocalStat(@QueryParam("id") int id, Pair pair){
+        Pair<Response,Pair<Long,Double>> responsePairPair =checkWellFormedPair(pair);
+        if(responsePairPair.left !=null) return responsePairPair.left;
+
+        return addLocalStat(id, responsePairPair.right);
+    }
+
+    @Path("/house/add")
+    @PUT
+    @Consumes(APPLICATION_PROTOBUF)
+    public Response serviceAddLocalStat(@QueryParam("id") int id, Measure measure){    //typed body: no need to check the values
+        if(measure==null) return Response.status(Response.Status.PARTIAL_CONTENT).entity("request is empty").build();
+
+        return addLocalStat(id, Pair.of(measure.getTimeStamp(), measure.getMeasurement()));
+    }
+
+    private Response addLocalStat(int id, Pair<Long,Double> measure){
         Pair<Response, Home> resp = checkHousePresent(id);
         if(resp.left !=null) return resp.left;
 
-        Pair<Response,Pair<Long,Double>> responsePairPair =checkWellFormedPair(pair);
-        if(responsePairPair.left !=null) return responsePairPair.left;
+        IngestPipeline ingest=IngestPipeline.get();
+        if(ingest!=null) return accepted(ingest.submitLocal(id, measure.left, measure.right));
 
-        if(Complex.getInstance().addLocalStat(id,responsePairPair.right)){
+        if(Complex.getInstance().addLocalStat(id,measure)){
             return Response.ok().build();
         }
-        return Response.status(Response.Status.NOT_ACCEPTABLE).entity("failed to add to the statistics of house with id ="+id).build();
+        return Response.status(Response.Status.NOT_ACCEPTABLE).entity("failed to add to the statistics of house with id ="+id+" (too late: older than the last "+Complex.getReorderWindow()+" statistics?)").build();
     }
 
     //endregion
@@ -113,35 +299,311 @@ public class ComplexService {
         Pair<Response,Pair<Long,Double>> responsePairPair =checkWellFormedPair(pair);
         if(responsePairPair.left !=null) return responsePairPair.left;
 
-        if(Complex.getInstance().addGlobalStat(responsePairPair.right)){
+        return addGlobalStat(responsePairPair.right);
+    }
+
+    @Path("/global/add")
+    @PUT
+    @Consumes(APPLICATION_PROTOBUF)
+    public Response serviceAddGlobalStat(Measure measure){
+        if(measure==null) return Response.status(Response.Status.PARTIAL_CONTENT).entity("request is empty").build();
+
+        return addGlobalStat(Pair.of(measure.getTimeStamp(), measure.getMeasurement()));
+    }
+
+    private Response addGlobalStat(Pair<Long,Double> measure){
+        IngestPipeline ingest=IngestPipeline.get();
+        if(ingest!=null) return accepted(ingest.submitGlobal(measure.left, measure.right));
+
+        if(Complex.getInstance().addGlobalStat(measure)){
             return Response.ok().build();
         }
-        return Response.status(Response.Status.NOT_ACCEPTABLE).entity("failed to add to global statistics").build();
+        return Response.status(Response.Status.NOT_ACCEPTABLE).entity("failed to add to global statistics (too late: older than the last "+Complex.getReorderWindow()+" statistics?)").build();
     }
+
     @Path("/global/stat")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response serviceGetLastNGlobalStat(@QueryParam("n") int n){  //worst case returns an empty list
-        ArrayList<Pair<Long, Double>> list = Complex.getInstance().getLastGlobalStat(n);
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetLastNGlobalStat(@QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to,
+                                              @QueryParam("resolution") String resolution, @Context HttpHeaders headers){  //worst case returns an empty list
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
+
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
 
-        return Response.ok(list,MediaType.APPLICATION_JSON).build();
+        Resolution res=Resolution.parse(resolution);
+        if(res==null) return wrongResolution(resolution);
+
+        EntityTag etag=etagOf("g"+Complex.getInstance().getGlobalVersion(), headers);
+        Response unchanged=notModifiedOrCached(etag, headers);
+        if(unchanged!=null) return unchanged;
+
+        if(res!=Resolution.RAW){
+            List<RollupBucket> buckets = isRange(from, to)?
+                    Complex.getInstance().getGlobalBucketRange(res, lower(from), upper(to)) :
+                    Complex.getInstance().getLastGlobalBuckets(res, n);
+
+            return bucketsResponse(buckets, headers, etag);
+        }
+
+        MeasureWindow window = isRange(from, to)?
+                Complex.getInstance().getGlobalStatRange(lower(from), upper(to)) :
+                Complex.getInstance().getLastGlobalStat(n);
+
+        return statisticsResponse(window, -1, headers, etag);
     }
 
     @Path("/global/meanDev")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response serviceGetGlobalMeanDev( @QueryParam("n") int n){
-        Pair<Double, Double> res = Complex.getInstance().getGlobalMeanDev(n);
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetGlobalMeanDev( @QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to, @Context HttpHeaders headers){
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
+
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
+
+        Pair<Double, Double> res = isRange(from, to)?
+                Complex.getInstance().getGlobalMeanDev(lower(from), upper(to)) :
+                Complex.getInstance().getGlobalMeanDev(n);
+
+        if(res==null) return Response.status(Response.Status.PRECONDITION_FAILED).entity("there are no global statistics").build();
 
-        if (res==null)Response.status(Response.Status.PRECONDITION_FAILED).entity("there are no global statistics ").build();
+        return meanDevResponse(res, headers);
 
-        return Response.ok(res,MediaType.APPLICATION_JSON).build();
+    }
+
+    @Path("/global/quantiles")
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetGlobalQuantiles(@QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to, @Context HttpHeaders headers){
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
 
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
+
+        Quantiles res = isRange(from, to)?
+                Complex.getInstance().getGlobalQuantiles(lower(from), upper(to)) :
+                Complex.getInstance().getGlobalQuantiles(n);
+
+        return quantilesResponse(res, headers);
     }
 
+    @Path("/houses/quantiles")
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_PROTOBUF})
+    public Response serviceGetHousesQuantiles(@QueryParam("n") int n, @QueryParam("from") Long from, @QueryParam("to") Long to, @Context HttpHeaders headers){   //the local statistics of all the houses together, n per house
+        Response notYet=awaitIngest();
+        if(notYet!=null) return notYet;
+
+        Response wrongRange=checkRange(from, to);
+        if(wrongRange!=null) return wrongRange;
+
+        Quantiles res = isRange(from, to)?
+                Complex.getInstance().getHousesQuantiles(lower(from), upper(to)) :
+                Complex.getInstance().getHousesQuantiles(n);
+
+        return quantilesResponse(res, headers);
+    }
 
     //endregion
 
+    /**
+     * every house and the global part are stored on their own: the body tells which parts were stored and which were refused
+     */
+    private Response addBatch(Map<Integer,List<Pair<Long,Double>>> byHouse, List<Pair<Long,Double>> global){
+        BatchResult result=new BatchResult();
+        for(Map.Entry<Integer,List<Pair<Long,Double>>> e:byHouse.entrySet()){
+            int stored=Complex.getInstance().addLocalStats(e.getKey(), e.getValue());
+            if(stored==e.getValue().size()){
+                result.storedHouses.add(e.getKey());
+            }else{                                      //missing, or some of its statistics too late
+                result.refusedHouses.add(e.getKey());
+                result.localRefused+=e.getValue().size()-Math.max(0, stored);
+            }
+        }
+        result.globalStored= global.isEmpty()? 0 : Complex.getInstance().addGlobalStats(global);
+        result.globalRefused=global.size()-result.globalStored;
+
+        if(!result.allStored()){
+            return Response.status(Response.Status.NOT_ACCEPTABLE).entity(result).type(MediaType.APPLICATION_JSON).build();
+        }
+        return Response.ok(result, MediaType.APPLICATION_JSON).build();
+    }
+
+    //region ASYNC INGEST
+    private Response accepted(String token){      //the statistic is queued, it will be stored by the writer of its shard
+        if(token==null)
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, 1).entity("too many statistics waiting to be stored").build();
+
+        return Response.accepted(token).header(INGEST_TOKEN, token).build();
+    }
+
+    private Response awaitIngest(){         //read your writes: waits for the statistic given in ?after= to be stored
+        IngestPipeline ingest=IngestPipeline.get();
+        if(after==null || after.isEmpty() || ingest==null) return null;
+
+        try {
+            if(ingest.awaitApplied(after, AFTER_TIMEOUT_MS)) return null;
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, 1).entity("statistic "+after+" not stored yet").build();
+    }
+    //endregion
+
+    //region TIME RANGE
+    private boolean isRange(Long from, Long to){            //a missing bound is open
+        return from!=null || to!=null;
+    }
+
+    private long lower(Long from){
+        return from==null? Long.MIN_VALUE : from;
+    }
+
+    private long upper(Long to){
+        return to==null? Long.MAX_VALUE : to;
+    }
+
+    private Response checkRange(Long from, Long to){
+        if(from!=null && to!=null && from>to)
+            return Response.status(Response.Status.BAD_REQUEST).entity("the range is empty: from="+from+" > to="+to).build();
+        return null;
+    }
+
+    private Response wrongResolution(String resolution){
+        return Response.status(Response.Status.BAD_REQUEST).entity("unknown resolution "+resolution+", expected one of "+Arrays.toString(Resolution.values())).build();
+    }
+    //endregion
+
+    //region CONTENT NEGOTIATION
+    private boolean acceptsProtobuf(HttpHeaders headers){     //the first acceptable type, by quality, decides: JSON wins on wildcards
+        for(MediaType mt:headers.getAcceptableMediaTypes()){
+            if(mt.isCompatible(MediaType.APPLICATION_JSON_TYPE)) return false;
+            if(mt.isCompatible(ProtobufProvider.APPLICATION_PROTOBUF_TYPE)) return true;
+        }
+        return false;
+    }
+
+    private Response statisticsResponse(MeasureWindow window, int id, HttpHeaders headers, EntityTag etag){
+        long[] timestamps=new long[MeasureWindow.BLOCK];
+        double[] measures=new double[MeasureWindow.BLOCK];
+
+        if(!acceptsProtobuf(headers)){
+            if(window.remaining()*JSON_BYTES_PER_MEASURE>ResponseCache.MAX_BODY)       //too big to be kept, written straight to the socket
+                return versioned(Response.ok(streamJson(window, timestamps, measures), MediaType.APPLICATION_JSON), etag);
+
+            ByteArrayOutputStream body=new ByteArrayOutputStream();
+            try {
+                writeJson(window, timestamps, measures, body);
+            } catch (IOException e) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+            }
+            return cachedResponse(body.toByteArray(), MediaType.APPLICATION_JSON, etag);
+        }
+
+        StatList.Builder b=StatList.newBuilder();
+        try {
+            for(int n=window.read(timestamps, measures);n>0;n=window.read(timestamps, measures)){
+                for(int i=0;i<n;i++){
+                    b.addMeasures(Measure.newBuilder().setSenderID(id).setTimeStamp(timestamps[i]).setMeasurement(measures[i]));
+                }
+            }
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        }
+        return cachedResponse(b.build().toByteArray(), APPLICATION_PROTOBUF, etag);
+    }
+
+    /**
+     * writes the measures as the same JSON array of Pair that Jackson would produce, one block at a time straight to the socket.
+     * if the window is overwritten halfway the connection is aborted instead of closing the array, so a client never gets a truncated list as a complete one
+     */
+    private StreamingOutput streamJson(MeasureWindow window, long[] timestamps, double[] measures){
+        return output -> writeJson(window, timestamps, measures, output);
+    }
+
+    static void writeJson(MeasureWindow window, long[] timestamps, double[] measures, OutputStream output) throws IOException {
+        JsonGenerator g=JSON.createGenerator(output);
+        g.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);     //the stream belongs to the container
+        try {
+            g.writeStartArray();
+            for(int n=window.read(timestamps, measures);n>0;n=window.read(timestamps, measures)){
+                for(int i=0;i<n;i++){
+                    g.writeStartObject();
+                    g.writeNumberField("left", timestamps[i]);
+                    g.writeNumberField("right", measures[i]);
+                    g.writeEndObject();
+                }
+            }
+            g.writeEndArray();
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            g.close();
+        }
+    }
+
+    private Response bucketsResponse(List<RollupBucket> buckets, HttpHeaders headers, EntityTag etag){
+        if(!acceptsProtobuf(headers)) return versioned(Response.ok(buckets,MediaType.APPLICATION_JSON), etag);
+
+        BucketList.Builder b=BucketList.newBuilder();
+        for(RollupBucket r:buckets){
+            b.addBuckets(Bucket.newBuilder().setStart(r.start).setCount(r.count).setMin(r.min).setMax(r.max).setMean(r.mean));
+        }
+        return cachedResponse(b.build().toByteArray(), APPLICATION_PROTOBUF, etag);
+    }
+
+    private Response meanDevResponse(Pair<Double,Double> meanDev, HttpHeaders headers){
+        if(meanDev==null || !acceptsProtobuf(headers)) return Response.ok(meanDev,MediaType.APPLICATION_JSON).build();
+
+        return Response.ok(MeanDeviation.newBuilder().setMean(meanDev.left).setDeviation(meanDev.right).build(), APPLICATION_PROTOBUF).build();
+    }
+
+    private Response quantilesResponse(Quantiles q, HttpHeaders headers){
+        if(q==null || !acceptsProtobuf(headers)) return Response.ok(q,MediaType.APPLICATION_JSON).build();
+
+        return Response.ok(Percentiles.newBuilder().setCount(q.count).setMin(q.min).setP50(q.p50).setP95(q.p95).setP99(q.p99).setMax(q.max).build(), APPLICATION_PROTOBUF).build();
+    }
+    //endregion
+
+    //region CONDITIONAL GET
+    private EntityTag etagOf(String version, HttpHeaders headers){     //JSON and protobuf bodies of the same version are different representations
+        return new EntityTag(BOOT+"-"+version+(acceptsProtobuf(headers)? "-pb" : ""));
+    }
+
+    /**
+     * @return 304 if the client already has this version, the cached body if the server has it, null if the body has to be built
+     */
+    private Response notModifiedOrCached(EntityTag etag, HttpHeaders headers){
+        Response.ResponseBuilder notModified=request.evaluatePreconditions(etag);
+        if(notModified!=null) return notModified.header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+
+        byte[] body=cache.get(cacheKey(), etag.getValue());
+        if(body==null) return null;
+
+        return versioned(Response.ok(body, acceptsProtobuf(headers)? APPLICATION_PROTOBUF : MediaType.APPLICATION_JSON), etag);
+    }
+
+    private Response cachedResponse(byte[] body, String mediaType, EntityTag etag){
+        cache.put(cacheKey(), etag.getValue(), body);
+        return versioned(Response.ok(body, mediaType), etag);
+    }
+
+    private Response versioned(Response.ResponseBuilder rb, EntityTag etag){
+        return rb.tag(etag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+    }
+
+    private String cacheKey(){          //the representation is part of the ETag, the request URI is enough
+        return uriInfo.getRequestUri().toString();
+    }
+    //endregion
+
     private Pair<Response,Pair<Long,Double>> checkWellFormedPair(Pair pair){    //checks if the input pair is well formed
         Response resp;
         if(pair==null) {
@@ -166,13 +628,4 @@ public class ComplexService {
 
         return Pair.of(null,home);
     }
-
-    private List<Home> removeStatistics(List<Home> copy) {
-        List<Home> cp=new ArrayList<>();
-
-        for (Home h : copy) {
-            cp.add(new Home(h));
-        }
-        return cp;
-    }
 }
\ No newline at end of file
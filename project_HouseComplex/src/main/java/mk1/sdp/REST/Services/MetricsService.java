@@ -0,0 +1,31 @@
+package mk1.sdp.REST.Services;
+
+import mk1.sdp.REST.Metrics.Metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * every metric of the server in the Prometheus text format, for a scraper
+ */
+@Path("/metrics")
+public class MetricsService {
+
+    @GET
+    @Produces(Metrics.CONTENT_TYPE)
+    public Response getMetrics(){
+        StreamingOutput body= out -> {
+            Writer w=new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            Metrics.write(w);
+            w.flush();
+        };
+        return Response.ok(body, Metrics.CONTENT_TYPE).build();
+    }
+}
@@ -3,18 +3,19 @@ import static mk1.sdp.misc.Common.printHigh;
 
 import org.glassfish.jersey.media.sse.EventOutput;
 import org.glassfish.jersey.media.sse.OutboundEvent;
-import org.glassfish.jersey.media.sse.SseBroadcaster;
 import org.glassfish.jersey.media.sse.SseFeature;
 
 import javax.inject.Singleton;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 @Singleton
 @Path("/eventBroadcast")
 public class PushNotificationService {
-    private SseBroadcaster broadcaster=new SseBroadcaster();
+    private final QueuedBroadcaster broadcaster=new QueuedBroadcaster("push", QueuedBroadcaster.Policy.DROP_OLDEST);   //the POSTing peer never waits for the subscribers
 
     @POST
     @Produces(MediaType.TEXT_PLAIN)
@@ -25,9 +26,7 @@ public class PushNotificationService {
                 .mediaType(MediaType.TEXT_PLAIN_TYPE)
                 .data(String.class, event)
                 .build();
-        broadcaster.broadcast(ev);
-
-        printHigh("server", "broadcast event: "+event);
+        broadcaster.broadcast(ev);      //no print: a console write per event would serialize the POSTing peers
     }
 
     @GET
@@ -39,4 +38,22 @@ public class PushNotificationService {
         return eo;
 
     }
+
+    @Path("/stats")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String,Object> getStats(){     //how much the subscribers are behind
+        return stats(broadcaster);
+    }
+
+    static Map<String,Object> stats(QueuedBroadcaster b){
+        Map<String,Object> m=new LinkedHashMap<>();
+        m.put("name", b.getName());
+        m.put("subscribers", b.getSubscribers());
+        m.put("queueDepth", b.getQueueDepth());
+        m.put("maxQueueDepth", b.getMaxQueueDepth());
+        m.put("dropped", b.getDropped());
+        m.put("evicted", b.getEvicted());
+        return m;
+    }
 }
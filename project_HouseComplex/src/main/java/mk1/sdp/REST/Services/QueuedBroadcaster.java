@@ -0,0 +1,342 @@
+package mk1.sdp.REST.Services;
+
+import mk1.sdp.REST.Metrics.LatencyHistogram;
+import mk1.sdp.REST.Metrics.Metrics;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static mk1.sdp.misc.Common.printErr;
+
+/**
+ * replacement of SseBroadcaster that never writes on the thread of the publisher.
+ * every subscriber has a bounded queue of events drained by a small pool of writers shared by all the broadcasters
+ * (sdp.sse.writers, default 2, the same number of threads closes the evicted subscribers):
+ * a slow subscriber fills its own queue, when it is full the policy decides what is lost, and one stuck on a write
+ * for longer than sdp.sse.stuckMs is closed and removed.
+ * a closed broadcaster takes no more subscribers and leaves no watchdog task or metric behind
+ */
+public class QueuedBroadcaster {
+    private static final int QUEUE_SIZE = Integer.getInteger("sdp.sse.queue", 256);           //events per subscriber
+    private static final long STUCK_MS = Long.getLong("sdp.sse.stuckMs", 5000);
+    private static final int BURST = 64;        //events written before giving the writer to another subscriber
+
+    private static final int WRITERS = Integer.getInteger("sdp.sse.writers", 2);
+
+    private static final ExecutorService writers = daemonPool("sseWriter", WRITERS);
+    private static final ExecutorService closers = daemonPool("sseCloser", WRITERS);     //a close waits for the write in progress
+    private static final Timer watchdog=new Timer("daemonSseWatchdog", true);
+
+    private static final String[] METRICS = {       //labelled with the name of the broadcaster
+            "sdp_sse_delivery_seconds", "sdp_sse_subscribers", "sdp_sse_queue_depth", "sdp_sse_max_queue_depth",
+            "sdp_sse_dropped_total", "sdp_sse_evicted_total"
+    };
+
+    /**
+     * what happens to a new event when the queue of a subscriber is full
+     */
+    public enum Policy {
+        DROP_OLDEST,        //the oldest queued event is lost
+        COALESCE            //the queued events with the same name are replaced by the new one, the oldest is lost if there are none
+    }
+
+    private final String name;
+    private final Policy policy;
+    private final CopyOnWriteArrayList<Subscriber> subscribers=new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped=new AtomicLong();
+    private final AtomicLong evicted=new AtomicLong();
+    private final TimerTask stuckCheck;
+    private final LatencyHistogram delivery;
+    private final Consumer<QueuedBroadcaster> onIdle;   //null if the broadcaster lives without subscribers
+    private boolean closed;                             //guarded by this
+
+    public QueuedBroadcaster(String name, Policy policy){
+        this(name, policy, null);
+    }
+
+    /**
+     * @param onIdle = told when the last subscriber is removed, e.g. to close the broadcaster with closeIfIdle
+     */
+    public QueuedBroadcaster(String name, Policy policy, Consumer<QueuedBroadcaster> onIdle){
+        this.name=name;
+        this.policy=policy;
+        this.onIdle=onIdle;
+
+        stuckCheck=new TimerTask() {
+            @Override
+            public void run() {
+                evictStuck();
+            }
+        };
+        watchdog.schedule(stuckCheck, STUCK_MS, STUCK_MS);
+
+        delivery=Metrics.histogram(METRICS[0], "time from the broadcast of an event to its write to a subscriber", "broadcaster", name);
+        Metrics.gauge(METRICS[1], "subscribers of a broadcaster", this::getSubscribers, "broadcaster", name);
+        Metrics.gauge(METRICS[2], "events waiting in the queues of a broadcaster", this::getQueueDepth, "broadcaster", name);
+        Metrics.gauge(METRICS[3], "events waiting for the subscriber most behind", this::getMaxQueueDepth, "broadcaster", name);
+        Metrics.counter(METRICS[4], "events lost because a queue was full", this::getDropped, "broadcaster", name);
+        Metrics.counter(METRICS[5], "subscribers removed because closed or stuck", this::getEvicted, "broadcaster", name);
+    }
+
+    public boolean add(EventOutput output){
+        return add(output, null, null);
+    }
+
+    /**
+     * @param filter = broadcast events the subscriber wants, checked by the writer just before writing. null for all
+     * @param backlog = events to write before the broadcast ones, asked only after the subscriber is registered
+     *                so nothing broadcast in the meantime is missed. null for none
+     * @return false if the broadcaster is closed, the output is not added
+     */
+    public boolean add(EventOutput output, Predicate<OutboundEvent> filter, Supplier<Iterator<OutboundEvent>> backlog){
+        Subscriber s=new Subscriber(output, filter, backlog!=null);
+        synchronized (this){
+            if(closed) return false;
+            subscribers.add(s);
+        }
+        if(backlog!=null) s.startWith(backlog.get());
+        return true;
+    }
+
+    /**
+     * queues the event for every subscriber and returns without waiting for any write
+     */
+    public void broadcast(OutboundEvent event){
+        Queued q=new Queued(event, System.nanoTime());
+        for(Subscriber s:subscribers){
+            s.offer(q);
+        }
+    }
+
+    /**
+     * closes every subscription, stops the watchdog task and removes the metrics
+     */
+    public void close(){
+        synchronized (this){
+            if(closed) return;
+            closed=true;
+        }
+        release();
+    }
+
+    /**
+     * closes the broadcaster unless a subscriber was added in the meantime
+     * @return true if it is closed
+     */
+    public boolean closeIfIdle(){
+        synchronized (this){
+            if(closed) return true;
+            if(!subscribers.isEmpty()) return false;
+            closed=true;
+        }
+        release();
+        return true;
+    }
+
+    private void release(){
+        stuckCheck.cancel();
+        watchdog.purge();       //a cancelled task stays in the queue of the timer until its next run
+
+        for(String metric:METRICS){
+            Metrics.remove(metric, "broadcaster", name);
+        }
+        for(Subscriber s:subscribers){
+            evict(s);
+        }
+    }
+
+    //region METRICS
+    public String getName(){
+        return name;
+    }
+
+    public int getSubscribers(){
+        return subscribers.size();
+    }
+
+    public int getQueueDepth(){         //events waiting in all the queues
+        int depth=0;
+        for(Subscriber s:subscribers){
+            depth+=s.depth();
+        }
+        return depth;
+    }
+
+    public int getMaxQueueDepth(){      //the subscriber most behind
+        int max=0;
+        for(Subscriber s:subscribers){
+            max=Math.max(max, s.depth());
+        }
+        return max;
+    }
+
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    public long getEvicted(){
+        return evicted.get();
+    }
+    //endregion
+
+    private void evictStuck(){
+        long now=System.currentTimeMillis();
+        for(Subscriber s:subscribers){
+            if(s.output.isClosed() || s.isStuck(now)){
+                printErr("SSE subscriber of "+name+" closed or stuck, removed");
+                evict(s);
+            }
+        }
+    }
+
+    private void evict(Subscriber s){
+        if(!subscribers.remove(s)) return;
+
+        evicted.incrementAndGet();
+        closers.execute(() -> {         //neither the watchdog nor a writer waits for a stuck write
+            try {
+                s.output.close();
+            } catch (IOException ignored) {}
+        });
+
+        if(onIdle!=null && subscribers.isEmpty() && !isClosed()) onIdle.accept(this);     //not while closing: close may run inside the owner's map
+    }
+
+    private synchronized boolean isClosed(){
+        return closed;
+    }
+
+    private static ExecutorService daemonPool(String name, int threads){
+        AtomicInteger count=new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t=new Thread(r, name+"-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static final class Queued {     //the same for every subscriber of a broadcast
+        final OutboundEvent event;
+        final long at;              //nanoTime of the broadcast
+
+        Queued(OutboundEvent event, long at){
+            this.event=event;
+            this.at=at;
+        }
+    }
+
+    //region SUBSCRIBER
+    private final class Subscriber implements Runnable {
+        private final EventOutput output;
+        private final Predicate<OutboundEvent> filter;
+        private final ArrayDeque<Queued> queue=new ArrayDeque<>();          //guarded by this
+        private Iterator<OutboundEvent> backlog;    //written before the queue, only used by the writer: it may take locks of its own
+        private boolean scheduled;                  //a writer is draining the queue
+        private volatile long writingSince;         //0 if not writing
+
+        Subscriber(EventOutput output, Predicate<OutboundEvent> filter, boolean waitBacklog){
+            this.output=output;
+            this.filter=filter;
+            this.scheduled=waitBacklog;             //the queue fills but nothing is written until the backlog is there
+        }
+
+        synchronized void startWith(Iterator<OutboundEvent> backlog){
+            this.backlog=backlog;
+            writers.execute(this);
+        }
+
+        synchronized void offer(Queued q){
+            if(queue.size()>=QUEUE_SIZE){
+                makeRoom(q.event);
+            }
+            queue.add(q);
+
+            if(!scheduled){
+                scheduled=true;
+                writers.execute(this);
+            }
+        }
+
+        private void makeRoom(OutboundEvent event){
+            int before=queue.size();
+            if(policy==Policy.COALESCE && event.getName()!=null){
+                Iterator<Queued> it=queue.iterator();
+                while(it.hasNext()){
+                    if(Objects.equals(it.next().event.getName(), event.getName())) it.remove();
+                }
+            }
+            if(queue.size()==before) queue.poll();
+
+            dropped.addAndGet(before-queue.size());
+        }
+
+        synchronized int depth(){
+            return queue.size();
+        }
+
+        boolean isStuck(long now){
+            long since=writingSince;
+            return since!=0 && now-since>STUCK_MS;
+        }
+
+        private OutboundEvent nextFromBacklog(){
+            if(backlog==null) return null;
+            if(backlog.hasNext()) return backlog.next();
+
+            backlog=null;
+            return null;
+        }
+
+        @Override
+        public void run() {     //writes a burst of events, then goes back in the pool if there are more
+            for(int i=0;i<BURST;i++){
+                try {
+                    OutboundEvent event=nextFromBacklog();
+                    long broadcastAt=0;         //0 for the backlog, not broadcast
+                    if(event==null){
+                        Queued q;
+                        synchronized (this){
+                            q=queue.poll();
+                            if(q==null){
+                                scheduled=false;
+                                return;
+                            }
+                        }
+                        event=q.event;
+                        broadcastAt=q.at;
+                        if(filter!=null && !filter.test(event)) continue;     //only the broadcast events are filtered
+                    }
+
+                    writingSince=System.currentTimeMillis();
+                    output.write(event);
+                    if(broadcastAt!=0) delivery.recordSince(broadcastAt);
+                } catch (IOException | IllegalStateException e) {     //disconnected, closed, or backlog not available anymore
+                    evict(this);
+                    synchronized (this){
+                        queue.clear();
+                        scheduled=false;
+                    }
+                    return;
+                } finally {
+                    writingSince=0;
+                }
+            }
+            writers.execute(this);
+        }
+    }
+    //endregion
+}
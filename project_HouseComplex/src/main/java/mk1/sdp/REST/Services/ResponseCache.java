@@ -0,0 +1,48 @@
+package mk1.sdp.REST.Services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * serialized bodies of the last GET requests, each one valid only for the version (ETag) it was built at.
+ * bounded in number of entries (least recently used goes first) and in size of a single body:
+ * bigger answers are streamed every time
+ */
+class ResponseCache {
+    static final int MAX_BODY = Integer.getInteger("sdp.cache.maxBody", 64*1024);      //bytes
+    private static final int MAX_ENTRIES = Integer.getInteger("sdp.cache.entries", 512);
+
+    private final LinkedHashMap<String, Entry> entries=new LinkedHashMap<String, Entry>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size()>MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @param key = request URI and representation
+     * @return the body cached for the key at the given version, null if missing or older
+     */
+    synchronized byte[] get(String key, String etag){
+        Entry e=entries.get(key);
+        if(e==null || !e.etag.equals(etag)) return null;
+
+        return e.body;
+    }
+
+    synchronized void put(String key, String etag, byte[] body){
+        if(body.length>MAX_BODY) return;
+
+        entries.put(key, new Entry(etag, body));
+    }
+
+    private static final class Entry {
+        final String etag;
+        final byte[] body;
+
+        Entry(String etag, byte[] body){
+            this.etag=etag;
+            this.body=body;
+        }
+    }
+}
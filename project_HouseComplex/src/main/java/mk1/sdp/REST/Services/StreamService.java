@@ -0,0 +1,247 @@
+package mk1.sdp.REST.Services;
+
+import mk1.sdp.REST.Resources.Complex;
+import mk1.sdp.REST.Resources.MeasureWindow;
+import mk1.sdp.REST.Resources.StatRecord;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.glassfish.jersey.media.sse.SseFeature;
+
+import javax.inject.Singleton;
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import static mk1.sdp.misc.Common.printHigh;
+
+/**
+ * live statistics: every statistic accepted by the complex is pushed to the subscribers of its series as soon as it is stored.
+ * the id of an event is the boot id of the server and the index of the measure in its series, a client reconnecting with Last-Event-ID
+ * first gets what it missed from the in-memory series (as far as the retention goes) and then the live events.
+ * an id of an earlier run of the server (the series are replayed from the log with new indexes) or past the last measure
+ * gets a reset comment and the stream starts from the current position.
+ * above/below filter the measures on the server.
+ * the broadcaster of a house is closed when the house is deleted or its last subscriber leaves, a new one is made at the next subscription
+ */
+@Singleton
+@Path("/stream")
+public class StreamService implements Complex.StatListener {
+    private final QueuedBroadcaster global=new QueuedBroadcaster("global", QueuedBroadcaster.Policy.DROP_OLDEST);
+    private final ConcurrentHashMap<Integer,QueuedBroadcaster> houses=new ConcurrentHashMap<>();
+
+    public StreamService(){
+        Complex.getInstance().addStatListener(this);
+    }
+
+    @Path("/global")
+    @GET
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput subscribeGlobal(@HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) String lastEventId,
+                                       @QueryParam("above") Double above, @QueryParam("below") Double below){
+        EventOutput eo=new EventOutput();
+        Resume resume= lastEventId==null? null : new Resume(lastEventId, above, below);
+
+        global.add(eo, filter(resume, above, below), resume==null? null : () -> resume.replay(Complex.getInstance()::getGlobalStatSince, -1));
+        printHigh("server", "new subscription to the global statistics");
+        return eo;
+    }
+
+    @Path("/house")
+    @GET
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput subscribeHouse(@QueryParam("id") int id, @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) String lastEventId,
+                                      @QueryParam("above") Double above, @QueryParam("below") Double below){
+        if(Complex.getInstance().getHouse(id)==null)
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity("There is no house with ID="+id).build());
+
+        EventOutput eo=new EventOutput();
+        Resume resume= lastEventId==null? null : new Resume(lastEventId, above, below);
+
+        while(!houses.computeIfAbsent(id, this::houseBroadcaster)
+                .add(eo, filter(resume, above, below), resume==null? null : () -> resume.replay(index -> Complex.getInstance().getLocalStatSince(id, index), id))){
+            Thread.yield();     //closed in the meantime: it is being removed from the map, the next one takes the subscriber
+        }
+        printHigh("server", "new subscription to the statistics of house "+id);
+        return eo;
+    }
+
+    /**
+     * created and removed only by the map, for its key: the metrics of an old broadcaster are removed before the new one's are registered
+     */
+    private QueuedBroadcaster houseBroadcaster(int id){
+        return new QueuedBroadcaster("house-"+id, QueuedBroadcaster.Policy.DROP_OLDEST,
+                b -> houses.computeIfPresent(id, (k, current) -> current==b && b.closeIfIdle()? null : current));
+    }
+
+    @Path("/stats")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String,Object> getStats(){
+        Map<String,Object> m=PushNotificationService.stats(global);
+        for(QueuedBroadcaster b:houses.values()){
+            m.put(b.getName(), PushNotificationService.stats(b));
+        }
+        return m;
+    }
+
+    //region LISTENER
+    @Override
+    public void onLocal(int houseID, long index, long timestamp, double measure) {
+        QueuedBroadcaster b=houses.get(houseID);
+        if(b==null || b.getSubscribers()==0) return;
+
+        b.broadcast(event(index, StatRecord.local(houseID, timestamp, measure)));
+    }
+
+    @Override
+    public void onGlobal(long index, long timestamp, double measure) {
+        if(global.getSubscribers()==0) return;
+
+        global.broadcast(event(index, StatRecord.global(timestamp, measure)));
+    }
+
+    @Override
+    public void onHouseDeleted(int houseID) {
+        houses.computeIfPresent(houseID, (k, b) -> {
+            b.close();
+            return null;
+        });
+    }
+    //endregion
+
+    private static OutboundEvent event(long index, StatRecord r){
+        return new OutboundEvent.Builder()
+                .id(ComplexService.BOOT+"-"+index)
+                .name(r.global? "global" : "local")
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(StatRecord.class, r)
+                .build();
+    }
+
+    private static Predicate<OutboundEvent> filter(Resume resume, Double above, Double below){     //for the live events
+        return ev -> {
+            if(resume!=null && indexOf(ev.getId())<resume.end) return false;      //already sent by the replay
+
+            return accepts(((StatRecord) ev.getData()).measure, above, below);
+        };
+    }
+
+    private static boolean accepts(double measure, Double above, Double below){
+        return (above==null || measure>above) && (below==null || measure<below);
+    }
+
+    private static long indexOf(String eventId){
+        return Long.parseLong(eventId.substring(eventId.lastIndexOf('-')+1));
+    }
+
+    /**
+     * replay of what a reconnecting client missed, up to the last measure stored when it subscribed.
+     * the live events before that end are already part of the replay
+     */
+    static final class Resume {
+        final long from;            //-1 if the id is not one of this server: nothing to replay
+        final Double above;
+        final Double below;
+        volatile long end;          //set by replay, before any live event is written
+
+        Resume(String lastEventId, Double above, Double below){
+            this.from=firstMissed(lastEventId);
+            this.above=above;
+            this.below=below;
+            this.end=Long.MAX_VALUE;
+        }
+
+        private static long firstMissed(String lastEventId){
+            int dash=lastEventId.lastIndexOf('-');
+            if(dash<0 || !lastEventId.substring(0, dash).equals(ComplexService.BOOT)) return -1;
+
+            try {
+                long index=Long.parseLong(lastEventId.substring(dash+1));
+                return index<0? -1 : index+1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @param since the window of the series from the given index, null if the series is gone
+         */
+        Iterator<OutboundEvent> replay(LongFunction<MeasureWindow> since, int id){
+            MeasureWindow window= from<0? null : since.apply(from);
+            if(window==null || window.remaining()==0){     //unknown id, or maybe past the last measure
+                MeasureWindow current=since.apply(0);
+                if(current==null){
+                    end=0;
+                    return new WindowIterator(null, id, null, this);
+                }
+                long total=current.position()+current.remaining();
+                if(from<0 || from>total || window==null){
+                    end=total;
+                    OutboundEvent reset=new OutboundEvent.Builder().comment("reset: unknown last event id (the server restarted?), the stream starts from measure "+total).build();
+                    return new WindowIterator(null, id, reset, this);
+                }
+            }
+            end=window.position()+window.remaining();
+
+            OutboundEvent gap= window.position()>from?       //part of what was missed is gone
+                    new OutboundEvent.Builder().comment("measures "+from+".."+(window.position()-1)+" are no longer stored").build() : null;
+            return new WindowIterator(window, id, gap, this);
+        }
+    }
+
+    private static final class WindowIterator implements Iterator<OutboundEvent> {     //reads the window one block at a time
+        private final MeasureWindow window;
+        private final int id;
+        private final Resume resume;
+        private OutboundEvent first;
+        private final long[] timestamps=new long[MeasureWindow.BLOCK];
+        private final double[] measures=new double[MeasureWindow.BLOCK];
+        private long index;
+        private int size;
+        private int next;
+
+        WindowIterator(MeasureWindow window, int id, OutboundEvent first, Resume resume){
+            this.window=window;
+            this.id=id;
+            this.first=first;
+            this.resume=resume;
+        }
+
+        @Override
+        public boolean hasNext() {      //IllegalStateException if the window is overwritten while being read
+            if(first!=null) return true;
+
+            while(true){
+                for(;next<size;next++){
+                    if(accepts(measures[next], resume.above, resume.below)) return true;
+                }
+                if(window==null) return false;
+
+                index=window.position();
+                size=window.read(timestamps, measures);
+                next=0;
+                if(size==0) return false;
+            }
+        }
+
+        @Override
+        public OutboundEvent next() {
+            if(!hasNext()) throw new NoSuchElementException();
+
+            if(first!=null){
+                OutboundEvent ev=first;
+                first=null;
+                return ev;
+            }
+            StatRecord r= id==-1? StatRecord.global(timestamps[next], measures[next]) : StatRecord.local(id, timestamps[next], measures[next]);
+            return event(index+next++, r);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package mk1.sdp.misc;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * reads and writes the protobuf messages generated from src/main/proto as application/x-protobuf bodies.
+ * registered on the REST server and on its clients, lets them exchange statistics without going through Jackson
+ */
+@Provider
+@Consumes(ProtobufProvider.APPLICATION_PROTOBUF)
+@Produces(ProtobufProvider.APPLICATION_PROTOBUF)
+public class ProtobufProvider implements MessageBodyReader<Message>, MessageBodyWriter<Message> {
+    public static final String APPLICATION_PROTOBUF = "application/x-protobuf";
+    public static final MediaType APPLICATION_PROTOBUF_TYPE = new MediaType("application", "x-protobuf");
+
+    private static final ConcurrentHashMap<Class<?>, Parser<? extends Message>> parsers = new ConcurrentHashMap<>();
+
+    //region READER
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return Message.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public Message readFrom(Class<Message> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException, WebApplicationException {
+        return parserOf(type).parseFrom(entityStream);
+    }
+
+    private static Parser<? extends Message> parserOf(Class<?> type){    //the parser of a generated message is found once through its default instance
+        return parsers.computeIfAbsent(type, t -> {
+            try {
+                return ((Message) t.getMethod("getDefaultInstance").invoke(null)).getParserForType();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(t.getName()+" is not a generated protobuf message", e);
+            }
+        });
+    }
+    //endregion
+
+    //region WRITER
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return Message.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(Message message, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return message.getSerializedSize();
+    }
+
+    @Override
+    public void writeTo(Message message, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+        message.writeTo(entityStream);
+    }
+    //endregion
+}
@@ -0,0 +1,98 @@
+package mk1.sdp.REST.Persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * what is appended comes back from the replay after a restart, in the same order
+ */
+public class StatisticsLogTest {
+    @Rule
+    public TemporaryFolder folder=new TemporaryFolder();
+
+    @Test
+    public void replayGivesBackEveryRecordInOrder() throws IOException {
+        File dir=folder.newFolder();
+        List<String> appended=appendSome(dir, 1000);
+
+        assertEquals(appended, replay(dir));
+    }
+
+    @Test
+    public void unwrittenSlotDoesNotHideTheRecordsAfterIt() throws IOException {
+        File dir=folder.newFolder();
+        List<String> appended=appendSome(dir, 100);
+
+        File[] segments=dir.listFiles((d, name) -> name.endsWith(".log"));
+        assertEquals(1, segments.length);
+        try(FileChannel ch=new RandomAccessFile(segments[0], "rw").getChannel()){      //reserved by a writer that crashed before writing it
+            int hole=40;
+            ch.write(ByteBuffer.allocate(StatisticsLog.RECORD_SIZE), (long)StatisticsLog.RECORD_SIZE*(hole+1));      //after the header
+            appended.remove(hole);
+        }
+
+        assertEquals(appended, replay(dir));
+    }
+
+    @Test
+    public void replayAfterARestartSeesBothRuns() throws IOException {
+        File dir=folder.newFolder();
+        List<String> appended=appendSome(dir, 10);
+        appended.addAll(appendSome(dir, 10));      //a restart begins a new segment
+
+        assertEquals(appended, replay(dir));
+    }
+
+    private static List<String> appendSome(File dir, int n) throws IOException {
+        List<String> appended=new ArrayList<>();
+        StatisticsLog log=new StatisticsLog(dir, 100);
+        replay(log);
+        for(int i=0;i<n;i++){
+            if(i%3==0){
+                log.appendGlobal(10_000_000_000L+i, i*0.25);
+                appended.add("global "+(10_000_000_000L+i)+" "+i*0.25);
+            }else{
+                log.appendLocal(i%7, 10_000_000_000L+i, -i);
+                appended.add("local "+i%7+" "+(10_000_000_000L+i)+" "+(double)-i);
+            }
+        }
+        log.close();
+        return appended;
+    }
+
+    private static List<String> replay(File dir) throws IOException {
+        StatisticsLog log=new StatisticsLog(dir, 100);
+        try {
+            return replay(log);
+        } finally {
+            log.close();
+        }
+    }
+
+    private static List<String> replay(StatisticsLog log) throws IOException {
+        List<String> replayed=new ArrayList<>();
+        log.replay(new StatisticsLog.Replayer() {
+            @Override
+            public void replayLocal(int houseID, long timestamp, double measure) {
+                replayed.add("local "+houseID+" "+timestamp+" "+measure);
+            }
+
+            @Override
+            public void replayGlobal(long timestamp, double measure) {
+                replayed.add("global "+timestamp+" "+measure);
+            }
+        });
+        return replayed;
+    }
+}
@@ -0,0 +1,103 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * the compressed store against the raw one fed with the same measures: every bit of the measures must come back
+ */
+public class GorillaSeriesStoreTest {
+    private static final int RETENTION = 5000;
+
+    @Test
+    public void everyEncodingComesBackBitForBit(){
+        Random rand=new Random(11);
+        long[] gaps={0, 1, 60, 61, 59, 200, 2000, 10_000, 1L<<40};      //delta-of-delta in every range, and beyond 12 bits
+        double[] specials={0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE, -1e300};
+
+        GorillaSeriesStore gorilla=new GorillaSeriesStore(RETENTION);
+        int count=3*GorillaSeriesStore.CHUNK_SIZE+5;
+        long[] timestamps=new long[count];
+        double[] measures=new double[count];
+        long t=-1_000_000;
+        for(int i=0;i<count;i++){
+            t+=gaps[rand.nextInt(gaps.length)];
+            timestamps[i]=t;
+            measures[i]= rand.nextInt(10)==0? specials[rand.nextInt(specials.length)] : rand.nextInt(3)==0? measures[Math.max(0, i-1)] : rand.nextGaussian()*1e6;
+            gorilla.add(t, measures[i]);
+        }
+
+        assertEquals(count, gorilla.size());
+        assertEquals(timestamps[count-1], gorilla.lastTimestamp());
+        SeriesStore.MeasureCursor cursor=gorilla.cursor(0, count);
+        for(int i=0;i<count;i++){
+            assertTrue(cursor.next());
+            assertEquals("timestamp "+i, timestamps[i], cursor.timestamp());
+            assertEquals("measure "+i, Double.doubleToRawLongBits(measures[i]), Double.doubleToRawLongBits(cursor.measure()));
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void sameAnswersAsTheRawStore(){
+        Random rand=new Random(5);
+        GorillaSeriesStore gorilla=new GorillaSeriesStore(RETENTION);
+        RawSeriesStore raw=new RawSeriesStore(RETENTION);
+
+        long t=0;
+        for(int i=0;i<3*RETENTION+77;i++){         //the oldest chunks are dropped on the way
+            t+=1000+rand.nextInt(5)-2;
+            double m=20+rand.nextGaussian();
+            gorilla.add(t, m);
+            raw.add(t, m);
+
+            if(i%501!=0) continue;
+            long oldest=gorilla.total()-gorilla.size();
+            assertTrue("at least the retention is kept", gorilla.size()>=Math.min(RETENTION, i+1));
+            assertEquals(raw.total(), gorilla.total());
+
+            for(int k=0;k<20;k++){
+                long first=oldest+rand.nextInt(gorilla.size());
+                long end=first+1+rand.nextInt((int)(gorilla.total()-first));
+                if(first<raw.total()-raw.size()) continue;
+
+                Pair<Double,Double> expected=raw.meanDeviation(first, end);
+                Pair<Double,Double> actual=gorilla.meanDeviation(first, end);
+                assertEquals(expected.left, actual.left, 1e-9);
+                assertEquals(expected.right, actual.right, 1e-6);      //the raw running sums round a one-measure deviation to ~1e-8, not 0
+
+                long at=t-rand.nextInt((int)Math.min(t, 1000L*raw.size()));
+                assertEquals("first at or after "+at, raw.firstAtOrAfter(at), gorilla.firstAtOrAfter(at));
+            }
+        }
+    }
+
+    @Test
+    public void truncateThenAddIsLikeNeverAdded(){
+        GorillaSeriesStore cut=new GorillaSeriesStore(RETENTION);
+        GorillaSeriesStore straight=new GorillaSeriesStore(RETENTION);
+        int count=2*GorillaSeriesStore.CHUNK_SIZE+30;
+        for(int i=0;i<count;i++){
+            cut.add(1000L*i, i*0.5);
+            if(i<GorillaSeriesStore.CHUNK_SIZE+10) straight.add(1000L*i, i*0.5);
+        }
+
+        cut.truncate(GorillaSeriesStore.CHUNK_SIZE+10);      //inside the second chunk, the third one goes
+        cut.add(-1, -1);
+        straight.add(-1, -1);
+
+        assertEquals(straight.total(), cut.total());
+        assertEquals(straight.size(), cut.size());
+        SeriesStore.MeasureCursor a=straight.cursor(0, straight.total()), b=cut.cursor(0, cut.total());
+        while(a.next()){
+            assertTrue(b.next());
+            assertEquals(a.timestamp(), b.timestamp());
+            assertEquals(a.measure(), b.measure(), 0);
+        }
+        assertFalse(b.next());
+    }
+}
@@ -0,0 +1,51 @@
+package mk1.sdp.REST.Resources;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * the rank error stated in the KllSketch doc, on a single sketch and on one merged from many
+ */
+public class KllSketchTest {
+    private static final double BOUND = 0.0165;      //k=200, 99% confidence
+    private static final double[] QS = {0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99};
+
+    @Test
+    public void quantilesWithinTheStatedRankError(){
+        Random rand=new Random(8);
+        double[] values=new double[300_000];
+        KllSketch single=new KllSketch();
+        KllSketch[] parts=new KllSketch[60];
+        for(int i=0;i<parts.length;i++) parts[i]=new KllSketch();
+
+        for(int i=0;i<values.length;i++){
+            values[i]=Math.exp(rand.nextGaussian());      //log-normal, as the consumptions
+            single.add(values[i]);
+            parts[i%parts.length].add(values[i]);
+        }
+        KllSketch merged=new KllSketch();
+        for(KllSketch p:parts) merged.merge(p);
+
+        double[] sorted=values.clone();
+        Arrays.sort(sorted);
+        assertEquals(values.length, single.count());
+        assertEquals(values.length, merged.count());
+
+        for(double q:QS){
+            assertEquals("single, q="+q, q, rank(sorted, single.quantile(q)), BOUND);
+            assertEquals("merged, q="+q, q, rank(sorted, merged.quantile(q)), BOUND);
+        }
+        assertEquals(sorted[0], single.quantile(0), 0);
+        assertEquals(sorted[sorted.length-1], merged.quantile(1), 0);
+    }
+
+    private static double rank(double[] sorted, double value){      //fraction of the values below the given one
+        int i=Arrays.binarySearch(sorted, value);
+        if(i<0) i=-i-1;
+        return (double)i/sorted.length;
+    }
+}
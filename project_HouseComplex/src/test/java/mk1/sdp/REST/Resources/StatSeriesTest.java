@@ -0,0 +1,152 @@
+package mk1.sdp.REST.Resources;
+
+import mk1.sdp.misc.Pair;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * the running sums of the series against the two-pass calculation they replaced
+ */
+public class StatSeriesTest {
+    private static final int RETENTION = 1000;
+
+    @Test
+    public void largeMeanTinyDeviationAcrossWrapArounds(){
+        Random rand=new Random(42);
+        double[] values=new double[7*RETENTION+123];        //the ring turns 7 times, ending halfway
+        for(int i=0;i<values.length;i++) values[i]=1e9+rand.nextGaussian()*1e-3;
+
+        checkAgainstTwoPass(values);
+    }
+
+    @Test
+    public void meanMovingFarFromTheFirstMeasure(){         //the offset taken from the first measure is useless after the jump
+        Random rand=new Random(7);
+        double[] values=new double[5*RETENTION];
+        for(int i=0;i<values.length;i++){
+            double level= i<RETENTION/2? 0 : 1e8;
+            values[i]=level+rand.nextGaussian()*1e-2;
+        }
+
+        checkAgainstTwoPass(values);
+    }
+
+    @Test
+    public void emptySeries(){
+        assertNull(new StatSeries(RETENTION).getMeanDeviation(10));
+    }
+
+    @Test
+    public void lateMeasuresAreSortedInPlace(){
+        checkLateMeasures(false);
+        checkLateMeasures(true);
+    }
+
+    @Test
+    public void tooLateMeasuresAreRefusedOneByOne(){
+        StatSeries series=new StatSeries(RETENTION);
+        for(int i=0;i<=StatSeries.REORDER;i++) assertTrue(series.add(1000+i, i));
+
+        List<Pair<Long,Double>> batch=Arrays.asList(Pair.of(999L, -1.0), Pair.of(1001L, -2.0), Pair.of(5000L, -3.0));
+        List<Pair<Long,Double>> added=series.addAll(batch);
+
+        assertEquals(Arrays.asList(batch.get(1), batch.get(2)), added);     //only the first one is older than the window
+        assertEquals(StatSeries.REORDER+3, series.size());
+    }
+
+    private static void checkLateMeasures(boolean compressed){          //every measure arrives up to REORDER places late
+        System.setProperty("sdp.series.compressed", Boolean.toString(compressed));
+        try {
+            Random rand=new Random(3);
+            int count=3*RETENTION+17;
+            Long[] arrival=new Long[count];
+            for(int i=0;i<count;i++) arrival[i]=(long)i;
+            int[] delay=new int[count];         //i arrives after j>i only if j<i+delay[i]: fewer than REORDER newer ones before it
+            for(int i=0;i<count;i++) delay[i]=rand.nextInt(StatSeries.REORDER);
+            Arrays.sort(arrival, (a, b) -> Long.compare(a+delay[(int)(long)a], b+delay[(int)(long)b]));
+
+            long[] order=new long[count];
+            for(int i=0;i<count;i++) order[i]=60_000L*arrival[i]/7;      //7 measures per minute bucket
+
+            StatSeries series=new StatSeries(RETENTION);
+            for(long t:order){
+                assertTrue("compressed="+compressed+" timestamp "+t, series.add(t, t/1000.0));
+            }
+
+            long[] timestamps=new long[RETENTION];
+            double[] measures=new double[RETENTION];
+            int n=series.getLastN(RETENTION).read(timestamps, measures);
+            assertEquals(RETENTION, n);
+
+            long[] sorted=order.clone();
+            Arrays.sort(sorted);
+            double[] expected=new double[RETENTION];
+            for(int i=0;i<RETENTION;i++){
+                long t=sorted[count-RETENTION+i];
+                assertEquals("compressed="+compressed+" position "+i, t, timestamps[i]);
+                expected[i]=t/1000.0;
+            }
+
+            Pair<Double,Double> exact=twoPass(expected, 0, RETENTION);
+            Pair<Double,Double> actual=series.getMeanDeviation(RETENTION);
+            assertEquals(exact.left, actual.left, Math.abs(exact.left)*1e-12);
+            assertEquals(exact.right, actual.right, exact.right*1e-9);
+
+            ArrayList<RollupBucket> minutes=series.getLastBuckets(Resolution.MINUTE, Integer.MAX_VALUE);
+            assertEquals((sorted[count-1]/60_000L)+1, minutes.size());      //one bucket per minute, none opened twice
+            for(int i=0;i<minutes.size();i++){
+                assertEquals(60_000L*i, minutes.get(i).start);
+                if(i<minutes.size()-1) assertEquals(7, minutes.get(i).count);
+            }
+        } finally {
+            System.clearProperty("sdp.series.compressed");
+        }
+    }
+
+    private static void checkAgainstTwoPass(double[] values){
+        StatSeries series=new StatSeries(RETENTION);
+        int[] windows={1, 2, 10, RETENTION/3, RETENTION, 10*RETENTION};
+
+        for(int i=0;i<values.length;i++){
+            assertTrue(series.add(i, values[i]));
+            if((i+1)%97!=0 && i!=values.length-1) continue;      //checks at many positions of the ring
+
+            for(int n:windows){
+                int count=Math.min(n, series.size());
+                Pair<Double,Double> expected=twoPass(values, i+1-count, i+1);
+                Pair<Double,Double> actual=series.getMeanDeviation(n);
+
+                String where="after "+(i+1)+" measures, last "+n;
+                assertEquals(where+" mean", expected.left, actual.left, Math.abs(expected.left)*1e-12);
+                assertEquals(where+" deviation", expected.right, actual.right, expected.right*1e-6+1e-7);
+            }
+        }
+    }
+
+    /**
+     * as the series did before the running sums, but exact: summing 1e9-sized values in doubles loses more than
+     * the deviation being checked, the reference must not be the one rounding
+     */
+    private static Pair<Double,Double> twoPass(double[] values, int first, int end){
+        BigDecimal n=BigDecimal.valueOf(end-first);
+        BigDecimal sum=BigDecimal.ZERO;
+        for(int i=first;i<end;i++) sum=sum.add(new BigDecimal(values[i]));
+        BigDecimal mean=sum.divide(n, MathContext.DECIMAL128);
+
+        BigDecimal squares=BigDecimal.ZERO;
+        for(int i=first;i<end;i++){
+            BigDecimal d=new BigDecimal(values[i]).subtract(mean);
+            squares=squares.add(d.multiply(d));
+        }
+
+        return Pair.of(mean.doubleValue(), Math.sqrt(squares.divide(n, MathContext.DECIMAL128).doubleValue()));
+    }
+}
@@ -0,0 +1,60 @@
+package mk1.sdp.REST.Services;
+
+import mk1.sdp.REST.Resources.Complex;
+import mk1.sdp.REST.Resources.MeasureWindow;
+import mk1.sdp.misc.Pair;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * what a client reconnecting with a Last-Event-ID is sent before the live events
+ */
+public class StreamServiceTest {
+    private long total;
+
+    @Before
+    public void someGlobalStatistics(){
+        Complex c=Complex.getInstance();
+        for(int i=0;i<3;i++){
+            assertTrue(c.addGlobalStat(Pair.of(System.currentTimeMillis()+10_000_000_000L, (double) i)));
+        }
+        MeasureWindow all=c.getGlobalStatSince(0);
+        total=all.position()+all.remaining();
+    }
+
+    @Test
+    public void missedEventsAreReplayed(){
+        StreamService.Resume resume=new StreamService.Resume(ComplexService.BOOT+"-"+(total-3), null, null);
+        Iterator<OutboundEvent> events=resume.replay(Complex.getInstance()::getGlobalStatSince, -1);
+
+        assertEquals(ComplexService.BOOT+"-"+(total-2), events.next().getId());
+        assertEquals(ComplexService.BOOT+"-"+(total-1), events.next().getId());
+        assertFalse(events.hasNext());
+        assertEquals(total, resume.end);
+    }
+
+    @Test
+    public void idBeyondTheLastMeasureResets(){      //e.g. from before a restart: the live events must still get through
+        checkReset(ComplexService.BOOT+"-"+(total+100));
+    }
+
+    @Test
+    public void idOfAnotherRunResets(){
+        checkReset("0-1");
+        checkReset("not an id");
+    }
+
+    private void checkReset(String lastEventId){
+        StreamService.Resume resume=new StreamService.Resume(lastEventId, null, null);
+        Iterator<OutboundEvent> events=resume.replay(Complex.getInstance()::getGlobalStatSince, -1);
+
+        assertTrue(events.next().getComment().startsWith("reset"));
+        assertFalse(events.hasNext());
+        assertEquals("the live events from the current position are sent", total, resume.end);
+    }
+}